@@ -0,0 +1,196 @@
+package com.aerse.mail;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-host timeouts derived from observed latencies. For every host the last
+ * <code>historySize</code> connect and response latencies are kept. Timeout is
+ * calculated as <code>percentile * multiplier</code> and bounded by
+ * <code>minTimeoutMillis</code> and <code>maxTimeoutMillis</code>. Until host
+ * has <code>minSamples</code> samples <code>maxTimeoutMillis</code> is used.
+ *
+ * Only successful attempts should be recorded: refused connection fails
+ * within a millisecond and would pull the timeout down. Connect sample covers
+ * greeting, EHLO and TLS handshake, but is applied to TCP connect only. This
+ * overestimates connect timeout, but never cuts a healthy connection. Read
+ * timeout is applied to every reply of the session: greeting, EHLO and
+ * STARTTLS inside connect and the reply to the end of message data. So it is
+ * the bigger of connect and response timeouts. Response sample should be the
+ * wait for the final reply without transfer time, otherwise small messages
+ * shrink the timeout and a big message times out after it was accepted.
+ *
+ * Timed out attempts are reported with {@link #recordTimeout(String)}. Current
+ * timeouts are recorded as samples, so the next attempt waits
+ * <code>multiplier</code> times longer. Host that became slow is not cut off
+ * forever.
+ *
+ * Can be shared between several senders. Spring-friendly.
+ */
+public class AdaptiveTimeouts {
+
+	private long minTimeoutMillis = 1000;
+	private long maxTimeoutMillis = 60000;
+	private double percentile = 0.99;
+	private double multiplier = 2.0;
+	private int historySize = 64;
+	private int minSamples = 10;
+	private int maxHosts = 10000;
+
+	private final Map<String, HostLatency> hosts = new LinkedHashMap<String, HostLatency>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, HostLatency> eldest) {
+			return size() > maxHosts;
+		}
+	};
+
+	public long getConnectTimeoutMillis(String host) {
+		return getTimeout(getHost(host).connect);
+	}
+
+	public long getReadTimeoutMillis(String host) {
+		return getReadTimeout(getHost(host));
+	}
+
+	/**
+	 * @param host   - remote host
+	 * @param millis - time spent to establish connection. Including greeting
+	 *               and TLS handshake. Successful connections only
+	 */
+	public void recordConnect(String host, long millis) {
+		getHost(host).connect.add(millis);
+	}
+
+	/**
+	 * @param host   - remote host
+	 * @param millis - time between the end of message data and server reply.
+	 *               Accepted messages only
+	 */
+	public void recordResponse(String host, long millis) {
+		getHost(host).response.add(millis);
+	}
+
+	/**
+	 * Connection or read timed out. Timeouts grow up to
+	 * <code>maxTimeoutMillis</code> on every call.
+	 *
+	 * @param host - remote host
+	 */
+	public void recordTimeout(String host) {
+		HostLatency latency = getHost(host);
+		long connectTimeout = getTimeout(latency.connect);
+		long readTimeout = getReadTimeout(latency);
+		latency.connect.add(connectTimeout);
+		latency.response.add(readTimeout);
+	}
+
+	private long getReadTimeout(HostLatency latency) {
+		// greeting and EHLO replies are read with the same timeout
+		return Math.max(getTimeout(latency.connect), getTimeout(latency.response));
+	}
+
+	private long getTimeout(LatencyWindow window) {
+		long value = window.getPercentile(percentile, minSamples);
+		if (value < 0) {
+			return maxTimeoutMillis;
+		}
+		long result = (long) (value * multiplier);
+		return Math.max(minTimeoutMillis, Math.min(maxTimeoutMillis, result));
+	}
+
+	private HostLatency getHost(String host) {
+		synchronized (hosts) {
+			HostLatency result = hosts.get(host);
+			if (result == null) {
+				result = new HostLatency(historySize);
+				hosts.put(host, result);
+			}
+			return result;
+		}
+	}
+
+	private static class HostLatency {
+
+		private final LatencyWindow connect;
+		private final LatencyWindow response;
+
+		HostLatency(int historySize) {
+			connect = new LatencyWindow(historySize);
+			response = new LatencyWindow(historySize);
+		}
+	}
+
+	private static class LatencyWindow {
+
+		private final long[] samples;
+		private int count;
+		private int next;
+
+		LatencyWindow(int size) {
+			samples = new long[size];
+		}
+
+		synchronized void add(long millis) {
+			samples[next] = millis;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) {
+				count++;
+			}
+		}
+
+		/**
+		 * @return -1 if there are not enough samples
+		 */
+		synchronized long getPercentile(double percentile, int minSamples) {
+			if (count == 0 || count < minSamples) {
+				return -1;
+			}
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+	}
+
+	/**
+	 * @param minTimeoutMillis - timeout floor
+	 */
+	public void setMinTimeoutMillis(long minTimeoutMillis) {
+		this.minTimeoutMillis = minTimeoutMillis;
+	}
+
+	/**
+	 * @param maxTimeoutMillis - timeout ceiling. Used for hosts without enough
+	 *                         history
+	 */
+	public void setMaxTimeoutMillis(long maxTimeoutMillis) {
+		this.maxTimeoutMillis = maxTimeoutMillis;
+	}
+
+	/**
+	 * @param percentile - percentile of history to use. For example: 0.99
+	 */
+	public void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	public void setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+	}
+
+	public void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	public void setMaxHosts(int maxHosts) {
+		this.maxHosts = maxHosts;
+	}
+}
@@ -0,0 +1,179 @@
+package com.aerse.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+
+/**
+ * Attachment for {@link FreemarkerMimeMessage}. Content is streamed either
+ * from file or from ByteBuffer (possibly memory-mapped) and base64-encoded
+ * while message is being written.
+ *
+ * If the same attachment is sent to many recipients, enable
+ * {@link #setCacheEncoded(boolean)}. Then content is encoded only once into
+ * off-heap buffer and this buffer is shared between all messages. Attachment
+ * is thread-safe and can be reused across messages.
+ */
+public class Attachment {
+
+	private static final int BASE64_LINE_LENGTH = 76;
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private final String fileName;
+	private final String contentType;
+	private final Path path;
+	private final ByteBuffer data;
+
+	private volatile boolean cacheEncoded;
+	private volatile ByteBuffer encoded;
+
+	public Attachment(String fileName, String contentType, Path path) {
+		if (path == null) {
+			throw new IllegalArgumentException("path cannot be null");
+		}
+		if (contentType == null) {
+			throw new IllegalArgumentException("content type cannot be null");
+		}
+		this.fileName = fileName;
+		this.contentType = contentType;
+		this.path = path;
+		this.data = null;
+	}
+
+	public Attachment(String fileName, String contentType, ByteBuffer data) {
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null");
+		}
+		if (contentType == null) {
+			throw new IllegalArgumentException("content type cannot be null");
+		}
+		this.fileName = fileName;
+		this.contentType = contentType;
+		this.path = null;
+		this.data = data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Create attachment backed by memory-mapped file.
+	 *
+	 * @param fileName    - file name visible to recipient
+	 * @param contentType - content type. For example: application/pdf
+	 * @param path        - file to map
+	 * @return attachment
+	 * @throws IOException - if file cannot be mapped
+	 */
+	public static Attachment mapped(String fileName, String contentType, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new Attachment(fileName, contentType, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	MimeBodyPart createBodyPart() throws MessagingException {
+		MimeBodyPart result;
+		if (cacheEncoded) {
+			result = new PreencodedMimeBodyPart("base64");
+			result.setDataHandler(new DataHandler(new ByteBufferDataSource(getEncoded(), contentType, fileName)));
+		} else {
+			result = new MimeBodyPart();
+			result.setDataHandler(new DataHandler(createDataSource()));
+			// explicit encoding. Otherwise JavaMail reads whole content to
+			// guess it
+			result.setHeader("Content-Transfer-Encoding", "base64");
+		}
+		result.setFileName(fileName);
+		result.setDisposition(Part.ATTACHMENT);
+		return result;
+	}
+
+	private DataSource createDataSource() {
+		if (path != null) {
+			return new PathDataSource(path, contentType, fileName);
+		}
+		return new ByteBufferDataSource(data, contentType, fileName);
+	}
+
+	private ByteBuffer getEncoded() throws MessagingException {
+		ByteBuffer result = encoded;
+		if (result == null) {
+			synchronized (this) {
+				result = encoded;
+				if (result == null) {
+					try {
+						result = encode();
+					} catch (IOException e) {
+						throw new MessagingException("unable to encode attachment: " + fileName, e);
+					}
+					encoded = result;
+				}
+			}
+		}
+		return result.duplicate();
+	}
+
+	private ByteBuffer encode() throws IOException {
+		long size;
+		if (path != null) {
+			size = Files.size(path);
+		} else {
+			size = data.remaining();
+		}
+		ByteBuffer result = ByteBuffer.allocateDirect(getEncodedLength(size));
+		try (InputStream is = createDataSource().getInputStream(); OutputStream os = Base64.getMimeEncoder().wrap(new ByteBufferOutputStream(result))) {
+			byte[] buf = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = is.read(buf)) != -1) {
+				os.write(buf, 0, read);
+			}
+		}
+		result.flip();
+		return result.asReadOnlyBuffer();
+	}
+
+	private static int getEncodedLength(long size) {
+		long chars = 4 * ((size + 2) / 3);
+		if (chars == 0) {
+			return 0;
+		}
+		// CRLF between lines, but not after the last one
+		long lines = (chars + BASE64_LINE_LENGTH - 1) / BASE64_LINE_LENGTH;
+		long result = chars + (lines - 1) * 2;
+		if (result > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("attachment is too big: " + size);
+		}
+		return (int) result;
+	}
+
+	/**
+	 * @param cacheEncoded - encode content once and reuse it for every message
+	 */
+	public void setCacheEncoded(boolean cacheEncoded) {
+		this.cacheEncoded = cacheEncoded;
+	}
+
+	public boolean isCacheEncoded() {
+		return cacheEncoded;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+}
@@ -0,0 +1,45 @@
+package com.aerse.mail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.activation.DataSource;
+
+/**
+ * Read-only DataSource over ByteBuffer. Every stream gets its own view of the
+ * buffer, so the same data can be written concurrently.
+ */
+class ByteBufferDataSource implements DataSource {
+
+	private final ByteBuffer data;
+	private final String contentType;
+	private final String name;
+
+	ByteBufferDataSource(ByteBuffer data, String contentType, String name) {
+		this.data = data;
+		this.contentType = contentType;
+		this.name = name;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteBufferInputStream(data.duplicate());
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		throw new UnsupportedOperationException("read-only data source");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+}
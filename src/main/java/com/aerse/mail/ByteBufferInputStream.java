@@ -0,0 +1,50 @@
+package com.aerse.mail;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int toRead = Math.min(len, buffer.remaining());
+		buffer.get(b, off, toRead);
+		return toRead;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int toSkip = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + toSkip);
+		return toSkip;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+}
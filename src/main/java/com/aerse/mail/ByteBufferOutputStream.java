@@ -0,0 +1,34 @@
+package com.aerse.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+class ByteBufferOutputStream extends OutputStream {
+
+	private final ByteBuffer buffer;
+
+	ByteBufferOutputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		try {
+			buffer.put((byte) b);
+		} catch (BufferOverflowException e) {
+			throw new IOException("buffer is full", e);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		try {
+			buffer.put(b, off, len);
+		} catch (BufferOverflowException e) {
+			throw new IOException("buffer is full", e);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.aerse.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Queued message in its wire format: encoded headers and body stored in a
+ * pooled direct buffer. Heap cost of a queued entry is just this object.
+ * <code>MimeMessage</code> is parsed back only before transmission.
+ * <code>From</code> is not stored here, because it is set by
+ * {@link IMailSender}.
+ */
+class CompactMessage {
+
+	// scratch buffers bigger than this are not kept between messages
+	private static final int MAX_RETAINED_SCRATCH = 1024 * 1024;
+	private static final ThreadLocal<ScratchOutputStream> SCRATCH = new ThreadLocal<>();
+
+	private final DirectBufferPool pool;
+	private ByteBuffer data;
+
+	private CompactMessage(DirectBufferPool pool, ByteBuffer data) {
+		this.pool = pool;
+		this.data = data;
+	}
+
+	static CompactMessage serialize(MimeMessage message, DirectBufferPool pool) throws MessagingException {
+		ScratchOutputStream scratch = SCRATCH.get();
+		if (scratch == null) {
+			scratch = new ScratchOutputStream();
+			SCRATCH.set(scratch);
+		}
+		try {
+			message.writeTo(scratch);
+			ByteBuffer data = pool.acquire(scratch.size());
+			scratch.copyTo(data);
+			data.flip();
+			return new CompactMessage(pool, data);
+		} catch (IOException e) {
+			throw new MessagingException("unable to serialize message", e);
+		} finally {
+			if (scratch.capacity() > MAX_RETAINED_SCRATCH) {
+				SCRATCH.remove();
+			} else {
+				scratch.reset();
+			}
+		}
+	}
+
+	MimeMessage materialize() throws MessagingException {
+		return new MimeMessage((Session) null, new ByteBufferInputStream(data.duplicate()));
+	}
+
+	int size() {
+		return data.remaining();
+	}
+
+	/**
+	 * Return buffer to the pool. Message cannot be used afterwards.
+	 */
+	void release() {
+		if (data != null) {
+			pool.release(data);
+			data = null;
+		}
+	}
+
+	private static class ScratchOutputStream extends ByteArrayOutputStream {
+
+		ScratchOutputStream() {
+			super(8192);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		void copyTo(ByteBuffer dst) {
+			dst.put(buf, 0, count);
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.aerse.mail;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * Shared "currentYear" template variable. Year is formatted once and
+ * recalculated only when it rolls over.
+ */
+class CurrentYearModel implements TemplateScalarModel {
+
+	private final TimeZone timeZone;
+	private volatile Year current;
+
+	CurrentYearModel(TimeZone timeZone) {
+		this.timeZone = timeZone;
+		this.current = calculate(System.currentTimeMillis());
+	}
+
+	@Override
+	public String getAsString() {
+		Year result = current;
+		long now = System.currentTimeMillis();
+		if (now >= result.nextYearMillis) {
+			result = calculate(now);
+			current = result;
+		}
+		return result.value;
+	}
+
+	private Year calculate(long now) {
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.setTimeInMillis(now);
+		// string for no-formatting
+		String value = String.valueOf(calendar.get(Calendar.YEAR));
+		calendar.add(Calendar.YEAR, 1);
+		calendar.set(Calendar.DAY_OF_YEAR, 1);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return new Year(value, calendar.getTimeInMillis());
+	}
+
+	private static class Year {
+
+		private final String value;
+		private final long nextYearMillis;
+
+		Year(String value, long nextYearMillis) {
+			this.value = value;
+			this.nextYearMillis = nextYearMillis;
+		}
+	}
+
+}
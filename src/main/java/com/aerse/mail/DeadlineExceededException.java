@@ -0,0 +1,17 @@
+package com.aerse.mail;
+
+import javax.mail.MessagingException;
+
+/**
+ * Message was not sent, because sending was not started before the deadline.
+ * Nothing was transmitted, so the message can be safely retried.
+ */
+public class DeadlineExceededException extends MessagingException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,408 @@
+package com.aerse.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded index of recently submitted idempotency keys. Key is remembered for
+ * <code>windowMillis</code>. At most <code>maxSize</code> keys are kept in
+ * memory, the oldest are evicted.
+ *
+ * Accepted key is pending until message is sent: {@link #commit(String)} or
+ * {@link #release(String)}. Pending keys are never evicted.
+ *
+ * If <code>spillFile</code> is specified, then committed keys are appended to
+ * it. Keys evicted from memory and keys committed before crash or restart are
+ * still detected: on a miss in memory the file is scanned. An in-memory bloom
+ * filter of the file keys makes the scan rare. Expired records are removed
+ * from the file on {@link #start()} and whenever file doubles in size. Keys
+ * that were pending during crash are not in the file: message might be lost
+ * from the queue, so its retry is accepted.
+ *
+ * Without <code>spillFile</code> evicted keys are forgotten.
+ */
+public class DeduplicationIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DeduplicationIndex.class);
+	private static final int FILTER_BITS_PER_KEY = 10;
+	private static final int FILTER_HASHES = 7;
+	// indexes are non-negative ints
+	private static final long MAX_FILTER_WORDS = (Integer.MAX_VALUE + 1L) / 64;
+
+	private long windowMillis = 24 * 60 * 60 * 1000L;
+	private int maxSize = 100000;
+	private Path spillFile;
+
+	private final Map<String, IndexEntry> entries = new ConcurrentHashMap<>();
+	// entries in insertion order. Since window is the same for all keys, it is
+	// also expiration order. Released entries stay here until evicted: they
+	// are no longer in the map and eviction skips them
+	private final Queue<IndexEntry> order = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger orderSize = new AtomicInteger();
+	// accepted, but not yet committed or released
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// guards spill file, its writer and filter
+	private final Object spillLock = new Object();
+	private DataOutputStream spillWriter;
+	private KeyFilter spillFilter;
+	private long spillRecords;
+	private long compactThreshold;
+
+	public void start() throws IOException {
+		if (spillFile == null) {
+			return;
+		}
+		synchronized (spillLock) {
+			compact();
+		}
+		LOG.info("loaded idempotency keys: " + spillRecords);
+	}
+
+	public void stop() throws IOException {
+		if (spillFile == null) {
+			return;
+		}
+		synchronized (spillLock) {
+			if (spillWriter != null) {
+				spillWriter.close();
+				spillWriter = null;
+			}
+		}
+	}
+
+	/**
+	 * Remember key if it wasn't seen within the window.
+	 *
+	 * @param key - idempotency key
+	 * @return <code>true</code> if key is new. <code>false</code> if this is
+	 *         a duplicate
+	 */
+	public boolean tryAcquire(String key) {
+		long now = System.currentTimeMillis();
+		evictExpired(now);
+		IndexEntry entry = new IndexEntry(key, now + windowMillis);
+		while (true) {
+			IndexEntry previous = entries.putIfAbsent(key, entry);
+			if (previous == null) {
+				break;
+			}
+			if (previous.expiration > now) {
+				hits.incrementAndGet();
+				return false;
+			}
+			if (entries.replace(key, previous, entry)) {
+				break;
+			}
+		}
+		// pending key might be evicted from memory while its message is
+		// still in the queue
+		boolean duplicate = !pending.add(key);
+		if (!duplicate && spillFile != null && isSpilled(key, now)) {
+			pending.remove(key);
+			duplicate = true;
+		}
+		if (duplicate) {
+			entries.remove(key, entry);
+			hits.incrementAndGet();
+			return false;
+		}
+		misses.incrementAndGet();
+		order.offer(entry);
+		orderSize.incrementAndGet();
+		evictOverflow();
+		return true;
+	}
+
+	/**
+	 * Mark key as sent. Only committed keys are written to the spill file and
+	 * survive restart.
+	 *
+	 * @param key - idempotency key
+	 */
+	public void commit(String key) {
+		if (!pending.remove(key) || spillFile == null) {
+			return;
+		}
+		synchronized (spillLock) {
+			try {
+				append(key, System.currentTimeMillis() + windowMillis);
+				if (spillRecords > compactThreshold) {
+					compact();
+				}
+			} catch (IOException e) {
+				// better send duplicate than lose message
+				LOG.error("unable to commit idempotency key: " + key, e);
+			}
+		}
+	}
+
+	/**
+	 * Forget key. Used when message with this key was not sent and can be
+	 * submitted again.
+	 *
+	 * @param key - idempotency key
+	 */
+	public void release(String key) {
+		// entry in the order queue is skipped on eviction
+		entries.remove(key);
+		if (pending.remove(key) || spillFile == null) {
+			// not in the file
+			return;
+		}
+		synchronized (spillLock) {
+			try {
+				// negative expiration cancels previous records of the key
+				append(key, -(System.currentTimeMillis() + windowMillis));
+			} catch (IOException e) {
+				LOG.error("unable to release idempotency key: " + key, e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of dropped duplicates
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of accepted keys
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of keys in memory
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return <code>true</code> if spill file has unexpired record of the key
+	 */
+	private boolean isSpilled(String key, long now) {
+		synchronized (spillLock) {
+			try {
+				// spill writer is null if not started or already stopped
+				return spillWriter != null && spillFilter.mightContain(key) && findSpilled(key) > now;
+			} catch (IOException e) {
+				// better send duplicate than lose message
+				LOG.error("unable to check idempotency key: " + key, e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return expiration of the last record of the key. 0 if there is no
+	 *         record or key was released
+	 */
+	private long findSpilled(String key) throws IOException {
+		spillWriter.flush();
+		long result = 0;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)))) {
+			while (true) {
+				String curKey;
+				long expiration;
+				try {
+					curKey = dis.readUTF();
+					expiration = dis.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				if (curKey.equals(key)) {
+					result = Math.max(0, expiration);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void append(String key, long expiration) throws IOException {
+		if (spillWriter == null) {
+			return;
+		}
+		spillWriter.writeUTF(key);
+		spillWriter.writeLong(expiration);
+		// survive process crash
+		spillWriter.flush();
+		spillFilter.add(key);
+		spillRecords++;
+	}
+
+	/**
+	 * Rewrite spill file without expired records and rebuild the filter.
+	 * Records are appended in expiration order, so file is streamed and never
+	 * loaded into memory.
+	 */
+	private void compact() throws IOException {
+		if (spillWriter != null) {
+			spillWriter.close();
+			spillWriter = null;
+		}
+		long now = System.currentTimeMillis();
+		long records = 0;
+		Path tmp = spillFile.resolveSibling(spillFile.getFileName() + ".tmp");
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			if (Files.exists(spillFile)) {
+				try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)))) {
+					while (true) {
+						String key;
+						long expiration;
+						try {
+							key = dis.readUTF();
+							expiration = dis.readLong();
+						} catch (EOFException e) {
+							break;
+						}
+						// released records are kept while they can cancel
+						// unexpired ones
+						if (Math.abs(expiration) <= now) {
+							continue;
+						}
+						dos.writeUTF(key);
+						dos.writeLong(expiration);
+						records++;
+					}
+				}
+			}
+		}
+		Files.move(tmp, spillFile, StandardCopyOption.REPLACE_EXISTING);
+		compactThreshold = 2 * records + maxSize;
+		spillFilter = new KeyFilter(compactThreshold * FILTER_BITS_PER_KEY);
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)))) {
+			for (long i = 0; i < records; i++) {
+				spillFilter.add(dis.readUTF());
+				dis.readLong();
+			}
+		}
+		spillRecords = records;
+		spillWriter = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+	}
+
+	private void evictExpired(long now) {
+		while (true) {
+			IndexEntry head = order.peek();
+			if (head == null || head.expiration > now) {
+				return;
+			}
+			if (order.remove(head)) {
+				orderSize.decrementAndGet();
+				entries.remove(head.key, head);
+			}
+		}
+	}
+
+	private void evictOverflow() {
+		while (orderSize.get() > maxSize) {
+			IndexEntry head = order.poll();
+			if (head == null) {
+				return;
+			}
+			orderSize.decrementAndGet();
+			entries.remove(head.key, head);
+		}
+	}
+
+	private static class IndexEntry {
+
+		private final String key;
+		private final long expiration;
+
+		IndexEntry(String key, long expiration) {
+			this.key = key;
+			this.expiration = expiration;
+		}
+	}
+
+	/**
+	 * Bloom filter. Answers "definitely not in file" or "might be in file"
+	 */
+	private static class KeyFilter {
+
+		private final long[] bits;
+		private final long size;
+
+		KeyFilter(long size) {
+			this.bits = new long[(int) Math.min(MAX_FILTER_WORDS, Math.max(1, (size + 63) / 64))];
+			this.size = bits.length * 64L;
+		}
+
+		void add(String key) {
+			long hash = hash(key);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < FILTER_HASHES; i++) {
+				long index = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+				bits[(int) (index >>> 6)] |= 1L << index;
+			}
+		}
+
+		boolean mightContain(String key) {
+			long hash = hash(key);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < FILTER_HASHES; i++) {
+				long index = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+				if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// 64-bit FNV-1a
+		private static long hash(String key) {
+			long result = 0xcbf29ce484222325L;
+			for (int i = 0; i < key.length(); i++) {
+				result ^= key.charAt(i);
+				result *= 0x100000001b3L;
+			}
+			return result;
+		}
+	}
+
+	public void setWindowMillis(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * @param maxSize - maximum number of keys in memory
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param spillFile - append-only file with committed keys
+	 */
+	public void setSpillFile(Path spillFile) {
+		this.spillFile = spillFile;
+	}
+
+}
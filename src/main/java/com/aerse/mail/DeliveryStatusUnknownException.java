@@ -0,0 +1,17 @@
+package com.aerse.mail;
+
+import javax.mail.MessagingException;
+
+/**
+ * Message was completely transmitted, but server reply was lost. Server might
+ * have accepted the message, so sending it again might deliver a duplicate.
+ */
+public class DeliveryStatusUnknownException extends MessagingException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DeliveryStatusUnknownException(String message, Exception cause) {
+		super(message, cause);
+	}
+
+}
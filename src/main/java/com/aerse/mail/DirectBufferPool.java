@@ -0,0 +1,105 @@
+package com.aerse.mail;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers grouped by power-of-two size classes. Buffers
+ * bigger than the largest class are allocated directly and not pooled. Total
+ * capacity of idle buffers is limited by <code>maxPooledBytes</code>, the rest
+ * is left to garbage collector.
+ */
+class DirectBufferPool {
+
+	private static final int MIN_SIZE_SHIFT = 10;
+
+	private final int maxSizeShift;
+	private final int maxBuffersPerClass;
+	private final long maxPooledBytes;
+	private final Queue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCount;
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong pooledBytes = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	DirectBufferPool(int maxPooledSize, int maxBuffersPerClass, long maxPooledBytes) {
+		this.maxSizeShift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(maxPooledSize - 1));
+		this.maxBuffersPerClass = maxBuffersPerClass;
+		this.maxPooledBytes = maxPooledBytes;
+		int classes = maxSizeShift - MIN_SIZE_SHIFT + 1;
+		free = (Queue<ByteBuffer>[]) new Queue<?>[classes];
+		freeCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+			freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @param size - required capacity
+	 * @return cleared buffer with limit set to size
+	 */
+	ByteBuffer acquire(int size) {
+		int sizeClass = getSizeClass(size);
+		ByteBuffer result = null;
+		if (sizeClass < free.length) {
+			result = free[sizeClass].poll();
+			if (result != null) {
+				freeCount[sizeClass].decrementAndGet();
+				pooledBytes.addAndGet(-result.capacity());
+			} else {
+				result = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT));
+			}
+		} else {
+			result = ByteBuffer.allocateDirect(size);
+		}
+		result.clear();
+		result.limit(size);
+		usedBytes.addAndGet(result.capacity());
+		return result;
+	}
+
+	void release(ByteBuffer buffer) {
+		usedBytes.addAndGet(-buffer.capacity());
+		int sizeClass = getSizeClass(buffer.capacity());
+		if (sizeClass >= free.length || (1 << (sizeClass + MIN_SIZE_SHIFT)) != buffer.capacity()) {
+			return;
+		}
+		if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		if (freeCount[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+			freeCount[sizeClass].decrementAndGet();
+			pooledBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		free[sizeClass].offer(buffer);
+	}
+
+	/**
+	 * @return capacity of all buffers currently acquired
+	 */
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return capacity of idle buffers kept in the pool
+	 */
+	long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	private int getSizeClass(int size) {
+		if (size <= (1 << MIN_SIZE_SHIFT)) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return Math.min(shift, maxSizeShift + 1) - MIN_SIZE_SHIFT;
+	}
+
+}
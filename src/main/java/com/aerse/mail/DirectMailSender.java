@@ -4,9 +4,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -16,8 +15,11 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.Message;
@@ -27,7 +29,6 @@ import javax.mail.Multipart;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
@@ -36,11 +37,6 @@ import javax.naming.directory.InitialDirContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.markenwerk.utils.mail.dkim.Canonicalization;
-import net.markenwerk.utils.mail.dkim.DkimMessage;
-import net.markenwerk.utils.mail.dkim.DkimSigner;
-import net.markenwerk.utils.mail.dkim.SigningAlgorithm;
-
 
 /**
  * JavaMail wrapper, that supports the following features:
@@ -51,7 +47,8 @@ import net.markenwerk.utils.mail.dkim.SigningAlgorithm;
  * <li>send directly to client's SMTP server. <code>IMailSender</code> analyses
  * MX records. If SMTP server for particular MX record is not available (throws
  * <code>java.net.ConnectException</code>), then next server is used.</li>
- * <li>switch JavaMail logging to log4j</li>
+ * <li>trace SMTP commands and responses of failed sessions. See
+ * <code>SmtpTracer</code></li>
  * </ul>
  * 
  * Before using this MailSender, please do the following configuration:
@@ -122,9 +119,19 @@ public class DirectMailSender implements IMailSender {
 	private String fromName;
 
 	private long connectionTimeoutMillis;
+	private AdaptiveTimeouts adaptiveTimeouts;
+	private SmtpTracer smtpTracer;
+
+	// parameters for tls
+	private String[] tlsProtocols;
+	private String[] tlsCipherSuites;
+	private int tlsSessionCacheSize = 1000;
+	private int tlsSessionTimeoutSeconds = 3600;
+	private boolean tlsStatisticsEnabled;
 
 	private InternetAddress from;
 	private RSAPrivateKey dkimPrivateKey;
+	private SmtpSSLSocketFactory sslSocketFactory;
 
 	public void start() throws IOException, GeneralSecurityException, NamingException {
 		if (fromEmail == null) {
@@ -142,83 +149,247 @@ public class DirectMailSender implements IMailSender {
 		iDirC = new InitialDirContext();
 		from = new InternetAddress(fromEmail, fromName, "UTF-8");
 		dkimPrivateKey = loadPrivateKey(dkimPrivateKeyLocation);
+		sslSocketFactory = new SmtpSSLSocketFactory(tlsProtocols, tlsCipherSuites, tlsSessionCacheSize, tlsSessionTimeoutSeconds, tlsStatisticsEnabled);
 	}
 
 	@Override
 	public void send(Message mailMessage) throws MessagingException {
-		Address[] to = mailMessage.getRecipients(RecipientType.TO);
-		if (to == null) {
-			throw new MessagingException("missing \"to\" recipients");
-		}
-		if (to.length > 1) {
-			throw new MessagingException("only single \"to\" recipient supported");
-		}
-		if (!(to[0] instanceof InternetAddress)) {
-			throw new MessagingException("unsupported address type: " + to[0].getClass());
+		String domain = getRecipientDomain(mailMessage);
+		MessagingException e = send(domain, Collections.singletonList(mailMessage)).get(mailMessage);
+		if (e != null) {
+			throw e;
 		}
-		InternetAddress toAddress = (InternetAddress) to[0];
-		String domain = toAddress.getAddress().substring(toAddress.getAddress().indexOf('@') + 1);
+	}
+
+	/**
+	 * Send several messages to the same domain. MX records are resolved once
+	 * and a single connection is reused for all messages. If connection to
+	 * MX fails, the rest of messages are sent through the next MX.
+	 * 
+	 * @param domain   - recipient domain of every message. See
+	 *                 {@link #getRecipientDomain(Message)}
+	 * @param messages - messages to send
+	 * @return messages that were not sent with the reason. Empty map if all
+	 *         messages were sent
+	 */
+	public Map<Message, MessagingException> send(String domain, List<Message> messages) {
+		return send(domain, messages, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Same as {@link #send(String, List)}, but messages are not started after
+	 * the deadline. Such messages are returned with
+	 * {@link DeadlineExceededException} and can be safely retried.
+	 * 
+	 * @param domain         - recipient domain of every message
+	 * @param messages       - messages to send
+	 * @param deadlineMillis - time in millis after which no message is started
+	 * @return messages that were not sent with the reason. Empty map if all
+	 *         messages were sent
+	 */
+	public Map<Message, MessagingException> send(String domain, List<Message> messages, long deadlineMillis) {
+		Map<Message, MessagingException> failed = new IdentityHashMap<>();
 		List<MXRecord> mx;
 		try {
 			mx = getMX(domain);
 		} catch (NamingException e2) {
-			throw new MessagingException("unable to resolve domain: " + domain, e2);
+			failAll(messages, 0, new MessagingException("unable to resolve domain: " + domain, e2), failed);
+			return failed;
+		} catch (UnknownHostException e2) {
+			failAll(messages, 0, new MessagingException("no mx available for domain: " + domain, e2), failed);
+			return failed;
 		}
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("MX records detected: " + mx);
 		}
-		for (int i = 0; i < mx.size(); i++) {
+		// index of the first message not yet processed
+		int next = 0;
+		for (int i = 0; i < mx.size() && next < messages.size(); i++) {
+			if (System.currentTimeMillis() > deadlineMillis) {
+				failAll(messages, next, new DeadlineExceededException("deadline exceeded for domain: " + domain), failed);
+				return failed;
+			}
 			String cur = mx.get(i).getValue();
-			Properties props = new Properties();
-			props.setProperty("mail.smtp.host", cur);
-			props.setProperty("mail.smtp.localhost", signingDomain);
-			props.setProperty("mail.smtp.starttls.enable", "true");
-			props.setProperty("mail.smtp.ssl.trust", "*");
-			String timeoutMillisStr = String.valueOf(connectionTimeoutMillis);
-			props.setProperty("mail.smtp.timeout", timeoutMillisStr);
-			props.setProperty("mail.smtps.timeout", timeoutMillisStr);
-			props.setProperty("mail.smtp.connectiontimeout", timeoutMillisStr);
-			props.setProperty("mail.smtps.connectiontimeout", timeoutMillisStr);
-
-			Session session = Session.getInstance(props);
-			if (LOG.isDebugEnabled()) {
-				try (PrintStream out = new PrintStream(new Log4jPrintStream(LOG), false, "UTF-8")) {
-					session.setDebugOut(out);
-					session.setDebug(true);
-				} catch (UnsupportedEncodingException e) {
-					throw new RuntimeException(e);
-				}
+			Session session = createSession(cur, mx.get(i).getHost());
+			SmtpTrace trace = null;
+			if (smtpTracer != null) {
+				trace = smtpTracer.start(session, domain, mx.get(i).getHost());
 			}
-
-			MimeMessage message = new MimeMessage(session);
-			message.setFrom(from);
-			message.setRecipient(RecipientType.TO, to[0]);
-			message.setSubject(mailMessage.getSubject());
-			message.setReplyTo(mailMessage.getReplyTo());
+			// description of the first failure in this session
+			String sessionFailure = null;
+			Transport transport = null;
 			try {
-				if (mailMessage.getContent() instanceof Multipart) {
-					message.setContent(mailMessage.getContent(), mailMessage.getContentType());
-				} else {
-					message.setDataHandler(mailMessage.getDataHandler());
+				transport = session.getTransport("smtp");
+				connect(transport, cur);
+				for (; next < messages.size(); next++) {
+					if (System.currentTimeMillis() > deadlineMillis) {
+						failAll(messages, next, new DeadlineExceededException("deadline exceeded for domain: " + domain), failed);
+						return failed;
+					}
+					Message mailMessage = messages.get(next);
+					DkimSignedMessage dkimSignedMessage;
+					try {
+						dkimSignedMessage = createMessage(mailMessage, session);
+						dkimSignedMessage.saveChanges();
+					} catch (MessagingException e) {
+						failed.put(mailMessage, e);
+						continue;
+					}
+					try {
+						sendMessage(transport, cur, dkimSignedMessage);
+					} catch (MessagingException e) {
+						if (hasRootCause(e, IOException.class)) {
+							if (dkimSignedMessage.isWritten()) {
+								// message was transmitted, but reply was lost. mx
+								// might have accepted it, so do not send it again
+								failed.put(mailMessage, new DeliveryStatusUnknownException("no reply after message was transmitted to: " + cur, e));
+								next++;
+							}
+							// connection is broken. retry on the next mx
+							throw e;
+						}
+						failed.put(mailMessage, new MessagingException("mx is not available: " + cur, e));
+						if (sessionFailure == null) {
+							sessionFailure = "message rejected by: " + cur;
+						}
+					}
 				}
-			} catch (IOException e1) {
-				throw new MessagingException("unable to get content", e1);
-			}
-			message.setSentDate(new Date());
-			MimeMessage dkimSignedMessage = dkimSignMessage(message);
-			try {
-				Transport.send(dkimSignedMessage);
-				return;
 			} catch (MessagingException e) {
+				if (adaptiveTimeouts != null && hasRootCause(e, SocketTimeoutException.class)) {
+					adaptiveTimeouts.recordTimeout(cur);
+				}
+				sessionFailure = "mx is not available: " + cur;
 				if (!hasRootCause(e, IOException.class) || i == mx.size() - 1) {
-					throw new MessagingException("mx is not available: " + cur, e);
+					failAll(messages, next, new MessagingException("mx is not available: " + cur, e), failed);
+					return failed;
 				}
 				LOG.info("mx is not available: " + cur);
+			} finally {
+				closeQuietly(transport);
+				if (smtpTracer != null) {
+					smtpTracer.finish(trace, LOG, sessionFailure != null, sessionFailure);
+				}
 			}
 		}
+		failAll(messages, next, new MessagingException("no mx available for domain: " + domain), failed);
+		return failed;
+	}
+
+	/**
+	 * @param message - message to check
+	 * @return domain of the single "to" recipient
+	 * @throws MessagingException - if message has no or several "to"
+	 *                            recipients
+	 */
+	public static String getRecipientDomain(Message message) throws MessagingException {
+		Address[] to = message.getRecipients(RecipientType.TO);
+		if (to == null) {
+			throw new MessagingException("missing \"to\" recipients");
+		}
+		if (to.length > 1) {
+			throw new MessagingException("only single \"to\" recipient supported");
+		}
+		if (!(to[0] instanceof InternetAddress)) {
+			throw new MessagingException("unsupported address type: " + to[0].getClass());
+		}
+		InternetAddress toAddress = (InternetAddress) to[0];
+		return toAddress.getAddress().substring(toAddress.getAddress().indexOf('@') + 1);
 	}
 
-	private List<MXRecord> getMX(String domainName) throws NamingException {
+	/**
+	 * @param host   - address to connect to
+	 * @param mxHost - MX host name of the address
+	 */
+	private Session createSession(String host, String mxHost) {
+		Properties props = new Properties();
+		props.setProperty("mail.smtp.host", host);
+		props.setProperty("mail.smtp.localhost", signingDomain);
+		props.setProperty("mail.smtp.starttls.enable", "true");
+		// TLS sessions are cached by MX name, not by one of its addresses
+		props.put("mail.smtp.ssl.socketFactory", sslSocketFactory.forHost(mxHost));
+		String timeoutMillisStr;
+		String connectionTimeoutMillisStr;
+		if (adaptiveTimeouts != null) {
+			timeoutMillisStr = String.valueOf(adaptiveTimeouts.getReadTimeoutMillis(host));
+			connectionTimeoutMillisStr = String.valueOf(adaptiveTimeouts.getConnectTimeoutMillis(host));
+		} else {
+			timeoutMillisStr = String.valueOf(connectionTimeoutMillis);
+			connectionTimeoutMillisStr = timeoutMillisStr;
+		}
+		props.setProperty("mail.smtp.timeout", timeoutMillisStr);
+		props.setProperty("mail.smtps.timeout", timeoutMillisStr);
+		props.setProperty("mail.smtp.connectiontimeout", connectionTimeoutMillisStr);
+		props.setProperty("mail.smtps.connectiontimeout", connectionTimeoutMillisStr);
+
+		return Session.getInstance(props);
+	}
+
+	private void connect(Transport transport, String host) throws MessagingException {
+		long start = System.nanoTime();
+		transport.connect();
+		// failed attempts are not recorded: refused connection fails fast
+		// and would lower the timeout
+		if (adaptiveTimeouts != null) {
+			adaptiveTimeouts.recordConnect(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	private void sendMessage(Transport transport, String host, DkimSignedMessage message) throws MessagingException {
+		transport.sendMessage(message, message.getAllRecipients());
+		// only the wait for the final reply. Transfer time grows with
+		// message size and has nothing to do with read timeout
+		if (adaptiveTimeouts != null) {
+			adaptiveTimeouts.recordResponse(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - message.getWrittenNanos()));
+		}
+	}
+
+	private DkimSignedMessage createMessage(Message mailMessage, Session session) throws MessagingException {
+		Address[] to = mailMessage.getRecipients(RecipientType.TO);
+		if (to == null || to.length != 1) {
+			throw new MessagingException("only single \"to\" recipient supported");
+		}
+		DkimSignedMessage message = new DkimSignedMessage(session, signingDomain, dkimSelector, fromEmail, dkimPrivateKey);
+		message.setFrom(from);
+		message.setRecipient(RecipientType.TO, to[0]);
+		message.setSubject(mailMessage.getSubject());
+		message.setReplyTo(mailMessage.getReplyTo());
+		try {
+			if (mailMessage.getContent() instanceof Multipart) {
+				message.setContent(mailMessage.getContent(), mailMessage.getContentType());
+			} else {
+				message.setDataHandler(mailMessage.getDataHandler());
+			}
+		} catch (IOException e1) {
+			throw new MessagingException("unable to get content", e1);
+		}
+		message.setSentDate(new Date());
+		return message;
+	}
+
+	private static void failAll(List<Message> messages, int fromIndex, MessagingException e, Map<Message, MessagingException> failed) {
+		for (int i = fromIndex; i < messages.size(); i++) {
+			failed.put(messages.get(i), e);
+		}
+	}
+
+	private static void closeQuietly(Transport transport) {
+		if (transport == null) {
+			return;
+		}
+		try {
+			transport.close();
+		} catch (MessagingException e) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("unable to close transport", e);
+			}
+		}
+	}
+
+	/**
+	 * @throws UnknownHostException - if none of mx hosts can be resolved.
+	 *                              Usually temporary DNS failure
+	 */
+	private List<MXRecord> getMX(String domainName) throws NamingException, UnknownHostException {
 		// see: RFC 974 - Mail routing and the domain system
 		// see: RFC 1034 - Domain names - concepts and facilities
 		// see: http://java.sun.com/j2se/1.5.0/docs/guide/jndi/jndi-dns.html
@@ -233,11 +404,12 @@ public class DirectMailSender implements IMailSender {
 
 		// if there are no MX RRs then default to domainName (see: RFC 974)
 		if (attributeMX == null) {
-			return Collections.singletonList(new MXRecord(0, domainName));
+			return Collections.singletonList(new MXRecord(0, domainName, domainName));
 		}
 
 		// split MX RRs into Preference Values(pvhn[0]) and Host Names(pvhn[1])
 		List<MXRecord> result = new ArrayList<>(attributeMX.size());
+		UnknownHostException resolveFailure = null;
 		for (int i = 0; i < attributeMX.size(); i++) {
 			String curValue = attributeMX.get(i).toString();
 			int spaceIndex = curValue.indexOf(' ');
@@ -257,9 +429,10 @@ public class DirectMailSender implements IMailSender {
 				InetAddress[] aRecords = InetAddress.getAllByName(record);
 				Integer priority = Integer.valueOf(curValue.substring(0, spaceIndex));
 				for (InetAddress cur : aRecords) {
-					result.add(new MXRecord(priority, cur.getHostAddress()));
+					result.add(new MXRecord(priority, cur.getHostAddress(), record));
 				}
 			} catch (UnknownHostException e) {
+				resolveFailure = e;
 				String message = "unable to resolve host: " + record + " skipping";
 				if (LOG.isDebugEnabled()) {
 					LOG.debug(message, e);
@@ -269,6 +442,10 @@ public class DirectMailSender implements IMailSender {
 			}
 		}
 
+		if (result.isEmpty() && resolveFailure != null) {
+			throw resolveFailure;
+		}
+
 		if (result.size() > 1) {
 			// sort the MX RRs by RR value (lower is preferred)
 			Collections.sort(result, MXRecordComparator.INSTANCE);
@@ -282,18 +459,6 @@ public class DirectMailSender implements IMailSender {
 		System.out.println(all[0].getHostAddress());
 	}
 
-	private MimeMessage dkimSignMessage(MimeMessage message) throws MessagingException {
-		DkimSigner dkimSigner = new DkimSigner(signingDomain, dkimSelector, dkimPrivateKey);
-		dkimSigner.setIdentity(fromEmail);
-		dkimSigner.setHeaderCanonicalization(Canonicalization.SIMPLE);
-		dkimSigner.setBodyCanonicalization(Canonicalization.RELAXED);
-		dkimSigner.setSigningAlgorithm(SigningAlgorithm.SHA256_WITH_RSA);
-		dkimSigner.setLengthParam(true);
-		dkimSigner.setZParam(false);
-		dkimSigner.setCheckDomainKey(false);
-		return new DkimMessage(message, dkimSigner);
-	}
-
 	private static RSAPrivateKey loadPrivateKey(String location) throws IOException, GeneralSecurityException {
 		RSAPrivateKey key = null;
 		BufferedReader br = null;
@@ -332,7 +497,7 @@ public class DirectMailSender implements IMailSender {
 		return key;
 	}
 
-	private static boolean hasRootCause(Throwable e, Class<?> rootCause) {
+	static boolean hasRootCause(Throwable e, Class<?> rootCause) {
 		if (rootCause.isInstance(e)) {
 			return true;
 		}
@@ -368,4 +533,51 @@ public class DirectMailSender implements IMailSender {
 	public void setDkimSelector(String dkimSelector) {
 		this.dkimSelector = dkimSelector;
 	}
+
+	/**
+	 * @param adaptiveTimeouts - per-host timeouts. If set, then
+	 *                         connectionTimeoutMillis is ignored
+	 */
+	public void setAdaptiveTimeouts(AdaptiveTimeouts adaptiveTimeouts) {
+		this.adaptiveTimeouts = adaptiveTimeouts;
+	}
+
+	/**
+	 * @param smtpTracer - protocol tracing for failed sessions
+	 */
+	public void setSmtpTracer(SmtpTracer smtpTracer) {
+		this.smtpTracer = smtpTracer;
+	}
+
+	public void setTlsProtocols(String[] tlsProtocols) {
+		this.tlsProtocols = tlsProtocols;
+	}
+
+	public void setTlsCipherSuites(String[] tlsCipherSuites) {
+		this.tlsCipherSuites = tlsCipherSuites;
+	}
+
+	public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+		this.tlsSessionCacheSize = tlsSessionCacheSize;
+	}
+
+	public void setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+		this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+	}
+
+	/**
+	 * @param tlsStatisticsEnabled - count handshakes and session resumptions.
+	 *                             Costs a thread start per handshake
+	 */
+	public void setTlsStatisticsEnabled(boolean tlsStatisticsEnabled) {
+		this.tlsStatisticsEnabled = tlsStatisticsEnabled;
+	}
+
+	/**
+	 * @return shared socket factory with TLS session resumption statistics.
+	 *         Available after {@link #start()}
+	 */
+	public SmtpSSLSocketFactory getSslSocketFactory() {
+		return sslSocketFactory;
+	}
 }
@@ -0,0 +1,265 @@
+package com.aerse.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Base64;
+import java.util.Enumeration;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * MimeMessage signed with DKIM while being written. Signature uses
+ * rsa-sha256, simple header and relaxed body canonicalization.
+ *
+ * The message is written twice: first pass only feeds canonicalized body into
+ * digest, second pass writes DKIM-Signature header and the message to the
+ * transport. Content is never buffered in memory, so attachments are streamed
+ * and encoded in both passes.
+ */
+class DkimSignedMessage extends MimeMessage {
+
+	// the same set of headers as utils-mail-dkim signed by default
+	private static final String[] SIGNED_HEADERS = new String[] { "Content-Description", "Content-ID", "Content-Type", "Content-Transfer-Encoding", "Cc", "Date", "From", "In-Reply-To", "List-Subscribe", "List-Post", "List-Owner", "List-Id", "List-Archive", "List-Help", "List-Unsubscribe", "MIME-Version", "Message-ID", "Resent-Sender", "Resent-Cc", "Resent-Date", "Resent-To", "Reply-To", "References", "Resent-Message-ID", "Resent-From", "Sender", "Subject", "To" };
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private final String signingDomain;
+	private final String selector;
+	private final String identity;
+	private final RSAPrivateKey privateKey;
+
+	private boolean written;
+	private long writtenNanos;
+
+	DkimSignedMessage(Session session, String signingDomain, String selector, String identity, RSAPrivateKey privateKey) {
+		super(session);
+		this.signingDomain = signingDomain;
+		this.selector = selector;
+		this.identity = identity;
+		this.privateKey = privateKey;
+	}
+
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		if (!saved) {
+			saveChanges();
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (GeneralSecurityException e) {
+			throw new MessagingException("unable to sign message", e);
+		}
+		RelaxedBodyOutputStream body = new RelaxedBodyOutputStream(digest);
+		super.writeTo(new BodyOutputStream(body), null);
+		body.finish();
+		os.write(createSignatureHeader(Base64.getEncoder().encodeToString(digest.digest()), body.getLength()).getBytes(StandardCharsets.US_ASCII));
+		os.write(CRLF);
+		super.writeTo(os, ignoreList);
+		written = true;
+		writtenNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return <code>true</code> if the whole message was written at least once
+	 */
+	boolean isWritten() {
+		return written;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the message was last completely
+	 *         written
+	 */
+	long getWrittenNanos() {
+		return writtenNanos;
+	}
+
+	private String createSignatureHeader(String bodyHash, long bodyLength) throws MessagingException {
+		StringBuilder signedHeaders = new StringBuilder();
+		StringBuilder names = new StringBuilder();
+		for (String cur : SIGNED_HEADERS) {
+			String line = null;
+			// raw Enumeration in JavaMail API
+			@SuppressWarnings("unchecked")
+			Enumeration<String> lines = getMatchingHeaderLines(new String[] { cur });
+			// sign the last instance of header
+			while (lines.hasMoreElements()) {
+				line = lines.nextElement();
+			}
+			if (line == null) {
+				continue;
+			}
+			signedHeaders.append(line).append("\r\n");
+			if (names.length() != 0) {
+				names.append(':');
+			}
+			names.append(cur);
+		}
+		StringBuilder header = new StringBuilder();
+		header.append("DKIM-Signature: v=1; a=rsa-sha256; c=simple/relaxed; d=").append(signingDomain);
+		header.append("; s=").append(selector);
+		if (identity != null) {
+			header.append("; i=").append(identity);
+		}
+		header.append("; t=").append(System.currentTimeMillis() / 1000);
+		header.append("; l=").append(bodyLength);
+		header.append("; h=").append(names);
+		header.append("; bh=").append(bodyHash);
+		header.append("; b=");
+		signedHeaders.append(header);
+		try {
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initSign(privateKey);
+			signature.update(signedHeaders.toString().getBytes(StandardCharsets.UTF_8));
+			header.append(Base64.getEncoder().encodeToString(signature.sign()));
+		} catch (GeneralSecurityException e) {
+			throw new MessagingException("unable to sign message", e);
+		}
+		return header.toString();
+	}
+
+	/**
+	 * Skips headers and passes body to the delegate
+	 */
+	private static class BodyOutputStream extends OutputStream {
+
+		private final OutputStream delegate;
+		// number of consecutive CR LF bytes seen in headers
+		private int separator;
+		private boolean inBody;
+
+		BodyOutputStream(OutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (inBody) {
+				delegate.write(b);
+				return;
+			}
+			if ((b == '\r' && (separator == 0 || separator == 2)) || (b == '\n' && (separator == 1 || separator == 3))) {
+				separator++;
+			} else if (b == '\r') {
+				separator = 1;
+			} else {
+				separator = 0;
+			}
+			if (separator == 4) {
+				inBody = true;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (inBody) {
+				delegate.write(b, off, len);
+				return;
+			}
+			for (int i = off; i < off + len; i++) {
+				if (inBody) {
+					delegate.write(b, i, off + len - i);
+					return;
+				}
+				write(b[i]);
+			}
+		}
+	}
+
+	/**
+	 * Relaxed body canonicalization (RFC 6376 3.4.4) into digest. Line ends
+	 * are treated the same way as SMTP transport does: CR, LF and CRLF are
+	 * all sent as CRLF.
+	 */
+	private static class RelaxedBodyOutputStream extends OutputStream {
+
+		private final MessageDigest digest;
+		private final byte[] buffer = new byte[8192];
+		private int position;
+		private long length;
+
+		private boolean pendingSpace;
+		private boolean previousCr;
+		// line breaks not written yet. Empty lines at the end are ignored
+		private int pendingLines;
+		private boolean hasContent;
+
+		RelaxedBodyOutputStream(MessageDigest digest) {
+			this.digest = digest;
+		}
+
+		@Override
+		public void write(int b) {
+			if (b == '\n' && previousCr) {
+				// the second half of CRLF
+				previousCr = false;
+				return;
+			}
+			previousCr = b == '\r';
+			if (b == '\r' || b == '\n') {
+				endLine();
+			} else if (b == ' ' || b == '\t') {
+				pendingSpace = true;
+			} else {
+				content((byte) b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+
+		private void endLine() {
+			// trailing whitespace is removed
+			pendingSpace = false;
+			pendingLines++;
+		}
+
+		private void content(byte b) {
+			for (; pendingLines > 0; pendingLines--) {
+				append((byte) '\r');
+				append((byte) '\n');
+			}
+			if (pendingSpace) {
+				pendingSpace = false;
+				append((byte) ' ');
+			}
+			append(b);
+			hasContent = true;
+		}
+
+		private void append(byte b) {
+			if (position == buffer.length) {
+				digest.update(buffer, 0, position);
+				position = 0;
+			}
+			buffer[position++] = b;
+			length++;
+		}
+
+		void finish() {
+			// non-empty body ends with exactly one CRLF
+			if (hasContent) {
+				append((byte) '\r');
+				append((byte) '\n');
+			}
+			digest.update(buffer, 0, position);
+			position = 0;
+		}
+
+		long getLength() {
+			return length;
+		}
+	}
+
+}
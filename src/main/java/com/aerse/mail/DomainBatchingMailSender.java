@@ -0,0 +1,313 @@
+package com.aerse.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous dispatcher in front of {@link DirectMailSender}. Messages are
+ * grouped by recipient domain. A group is handed to a single worker when it
+ * reaches <code>maxBatchSize</code> or when <code>batchWindowMillis</code>
+ * passes after its first message, whichever happens first. MX lookup,
+ * connection and TLS handshake are done once per group.
+ *
+ * {@link #send(Message)} returns as soon as message is queued. If all
+ * workers are busy and <code>queueCapacity</code> batches are waiting, then
+ * {@link #send(Message)} throws <code>MessagingException</code>, so callers
+ * see backpressure instead of losing mail. Failures after message was queued
+ * are passed to {@link MailFailureListener} or logged if there is none.
+ *
+ * Messages of a batch are sent sequentially and batch may wait behind batches
+ * to slow domains. Message is kept in a batch for at most
+ * <code>maxDelayMillis</code> after it was queued. Late messages are sent one
+ * by one, each through its own connection, and never dropped.
+ */
+public class DomainBatchingMailSender implements IMailSender {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DomainBatchingMailSender.class);
+
+	private DirectMailSender mailSender;
+	private long batchWindowMillis = 100;
+	private int maxBatchSize = 50;
+	private int threads = 4;
+	private long maxDelayMillis = 60000;
+	private int queueCapacity = 1000;
+	private MailFailureListener failureListener;
+
+	private final Map<String, Batch> pending = new HashMap<>();
+	private ScheduledExecutorService scheduler;
+	private ThreadPoolExecutor workers;
+	private boolean running;
+
+	public void start() {
+		if (mailSender == null) {
+			throw new IllegalStateException("mail sender should be specified");
+		}
+		if (maxDelayMillis <= batchWindowMillis) {
+			throw new IllegalStateException("maxDelayMillis should be bigger than batchWindowMillis");
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory("aerse-email-batch"));
+		workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new NamingThreadFactory("aerse-email-batch-worker"));
+		synchronized (pending) {
+			running = true;
+		}
+	}
+
+	/**
+	 * Dispatch all pending batches and stop accepting new messages.
+	 */
+	public void stop() {
+		List<Batch> remaining;
+		synchronized (pending) {
+			running = false;
+			remaining = new ArrayList<>(pending.values());
+			pending.clear();
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (workers != null) {
+			for (Batch cur : remaining) {
+				try {
+					dispatch(cur);
+				} catch (RejectedExecutionException e) {
+					failAll(cur, new MessagingException("dispatch queue is full", e));
+				}
+			}
+			workers.shutdown();
+		}
+	}
+
+	@Override
+	public void send(Message message) throws MessagingException {
+		String domain = DirectMailSender.getRecipientDomain(message).toLowerCase(Locale.ENGLISH);
+		Batch full = null;
+		synchronized (pending) {
+			if (!running) {
+				throw new MessagingException("sender is not running");
+			}
+			if (workers.getQueue().remainingCapacity() == 0) {
+				throw new MessagingException("dispatch queue is full");
+			}
+			Batch batch = pending.get(domain);
+			if (batch == null) {
+				batch = new Batch(domain);
+				pending.put(domain, batch);
+				scheduler.schedule(new FlushTask(batch), batchWindowMillis, TimeUnit.MILLISECONDS);
+			}
+			batch.messages.add(new QueuedMessage(message, System.currentTimeMillis() + maxDelayMillis));
+			if (batch.messages.size() >= maxBatchSize) {
+				pending.remove(domain);
+				full = batch;
+			}
+		}
+		if (full != null) {
+			try {
+				dispatch(full);
+			} catch (RejectedExecutionException e) {
+				// earlier messages of the batch were already accepted
+				for (QueuedMessage cur : full.messages) {
+					if (cur.message != message) {
+						fail(cur.message, new MessagingException("dispatch queue is full", e));
+					}
+				}
+				throw new MessagingException("dispatch queue is full", e);
+			}
+		}
+	}
+
+	private void dispatch(final Batch batch) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("dispatching " + batch.messages.size() + " message(s) to: " + batch.domain);
+		}
+		workers.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					sendBatch(batch);
+				} catch (RuntimeException e) {
+					failAll(batch, new MessagingException("unable to send batch", e));
+				}
+			}
+		});
+	}
+
+	private void sendBatch(Batch batch) {
+		List<QueuedMessage> remaining = batch.messages;
+		while (!remaining.isEmpty()) {
+			long now = System.currentTimeMillis();
+			List<Message> messages = new ArrayList<>(remaining.size());
+			// the earliest deadline of the batch
+			long deadline = Long.MAX_VALUE;
+			for (QueuedMessage cur : remaining) {
+				if (now > cur.deadline) {
+					sendLate(batch.domain, cur.message);
+					continue;
+				}
+				messages.add(cur.message);
+				deadline = Math.min(deadline, cur.deadline);
+			}
+			if (messages.isEmpty()) {
+				return;
+			}
+			Map<Message, MessagingException> failed = mailSender.send(batch.domain, messages, deadline);
+			List<QueuedMessage> notStarted = new ArrayList<>();
+			for (QueuedMessage cur : remaining) {
+				MessagingException e = failed.get(cur.message);
+				if (e == null) {
+					continue;
+				}
+				if (e instanceof DeadlineExceededException) {
+					// the earliest is late now, others might still have time
+					notStarted.add(cur);
+					continue;
+				}
+				fail(cur.message, e);
+			}
+			remaining = notStarted;
+		}
+	}
+
+	private void sendLate(String domain, Message message) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("message was not sent within " + maxDelayMillis + "ms. sending separately: " + describe(message));
+		}
+		MessagingException e = mailSender.send(domain, Collections.singletonList(message)).get(message);
+		if (e != null) {
+			fail(message, e);
+		}
+	}
+
+	private void failAll(Batch batch, MessagingException e) {
+		for (QueuedMessage cur : batch.messages) {
+			fail(cur.message, e);
+		}
+	}
+
+	private void fail(Message message, MessagingException e) {
+		if (failureListener == null) {
+			LOG.error("unable to send message to: " + describe(message), e);
+			return;
+		}
+		try {
+			failureListener.onFailure(message, e);
+		} catch (RuntimeException e1) {
+			LOG.error("failure listener failed for message to: " + describe(message), e1);
+		}
+	}
+
+	private static String describe(Message message) {
+		try {
+			return Arrays.toString(message.getRecipients(RecipientType.TO));
+		} catch (MessagingException e) {
+			return "<unreadable>";
+		}
+	}
+
+	private class FlushTask implements Runnable {
+
+		private final Batch batch;
+
+		FlushTask(Batch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			synchronized (pending) {
+				// batch might be already dispatched because it was full
+				if (pending.get(batch.domain) != batch) {
+					return;
+				}
+				pending.remove(batch.domain);
+			}
+			try {
+				dispatch(batch);
+			} catch (RejectedExecutionException e) {
+				failAll(batch, new MessagingException("dispatch queue is full", e));
+			}
+		}
+	}
+
+	private static class Batch {
+
+		private final String domain;
+		private final List<QueuedMessage> messages = new ArrayList<>();
+
+		Batch(String domain) {
+			this.domain = domain;
+		}
+	}
+
+	private static class QueuedMessage {
+
+		private final Message message;
+		private final long deadline;
+
+		QueuedMessage(Message message, long deadline) {
+			this.message = message;
+			this.deadline = deadline;
+		}
+	}
+
+	public void setMailSender(DirectMailSender mailSender) {
+		this.mailSender = mailSender;
+	}
+
+	/**
+	 * @param batchWindowMillis - maximum time message waits for other
+	 *                          messages to the same domain
+	 */
+	public void setBatchWindowMillis(long batchWindowMillis) {
+		this.batchWindowMillis = batchWindowMillis;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param maxDelayMillis - maximum time message is kept in a batch. Late
+	 *                       messages are sent separately
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @param queueCapacity - maximum number of batches waiting for a worker
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param failureListener - receives messages that were queued, but not
+	 *                        sent. If not set, failures are logged
+	 */
+	public void setFailureListener(MailFailureListener failureListener) {
+		this.failureListener = failureListener;
+	}
+}
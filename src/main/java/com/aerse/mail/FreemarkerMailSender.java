@@ -1,9 +1,9 @@
 package com.aerse.mail;
 
 import java.io.StringWriter;
-import java.util.Calendar;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -12,7 +12,9 @@ import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +22,7 @@ import org.slf4j.LoggerFactory;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.TemplateModelException;
 
 public class FreemarkerMailSender {
 
@@ -29,9 +32,16 @@ public class FreemarkerMailSender {
 	private IMailSender mailSender;
 	private boolean enabled;
 	private boolean useSeparateThread;
+	private Map<String, Object> sharedVariables;
+	private boolean compactQueue;
+	private DeduplicationIndex deduplicationIndex;
+	private int compactQueueMaxPooledSize = 64 * 1024;
+	private int compactQueueMaxPooledBuffers = 64;
+	private long compactQueueMaxPooledBytes = 8 * 1024 * 1024;
 
 	private Configuration freemarkerConfig;
 	private ExecutorService threadpool;
+	private DirectBufferPool bufferPool;
 
 	public void start() {
 		freemarkerConfig = new Configuration();
@@ -39,11 +49,26 @@ public class FreemarkerMailSender {
 		freemarkerConfig.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
 		freemarkerConfig.setClassForTemplateLoading(FreemarkerMailSender.class, templateClasspathPrefix);
 		freemarkerConfig.setTimeZone(TimeZone.getTimeZone("GMT"));
+		freemarkerConfig.setSharedVariable("currentYear", new CurrentYearModel(freemarkerConfig.getTimeZone()));
+		if (sharedVariables != null) {
+			for (Entry<String, Object> cur : sharedVariables.entrySet()) {
+				try {
+					freemarkerConfig.setSharedVariable(cur.getKey(), cur.getValue());
+				} catch (TemplateModelException e) {
+					throw new IllegalArgumentException("unable to register shared variable: " + cur.getKey(), e);
+				}
+			}
+		}
 		if (useSeparateThread) {
 			threadpool = Executors.newFixedThreadPool(1, new NamingThreadFactory("aerse-email"));
 		} else {
 			threadpool = null;
 		}
+		if (useSeparateThread && compactQueue) {
+			bufferPool = new DirectBufferPool(compactQueueMaxPooledSize, compactQueueMaxPooledBuffers, compactQueueMaxPooledBytes);
+		} else {
+			bufferPool = null;
+		}
 	}
 
 	public void stop() {
@@ -63,41 +88,128 @@ public class FreemarkerMailSender {
 		}
 	}
 
+	/**
+	 * Send message. If message has idempotency key and deduplication index is
+	 * configured, then duplicates are silently dropped. See
+	 * {@link #trySend(FreemarkerMimeMessage)}
+	 * 
+	 * @param message - message to send
+	 * @throws MessagingException - if message cannot be prepared or sent
+	 */
 	public void send(final FreemarkerMimeMessage message) throws MessagingException {
+		trySend(message);
+	}
+
+	/**
+	 * Send message. If message has idempotency key and deduplication index is
+	 * configured, then duplicates are dropped before rendering.
+	 * 
+	 * @param message - message to send
+	 * @return <code>false</code> if message was dropped as a duplicate
+	 * @throws MessagingException - if message cannot be prepared or sent
+	 */
+	public boolean trySend(final FreemarkerMimeMessage message) throws MessagingException {
 		if (message == null) {
 			throw new IllegalArgumentException("message cannot be null");
 		}
 		if (message.getTo() == null || message.getTo().isEmpty()) {
 			throw new IllegalArgumentException("\"to\" should be specified");
 		}
-		if (threadpool != null) {
+		String idempotencyKey = message.getIdempotencyKey();
+		if (deduplicationIndex != null && idempotencyKey != null && !deduplicationIndex.tryAcquire(idempotencyKey)) {
+			LOG.info("duplicate message dropped. idempotency key: " + idempotencyKey + " subject: " + message.getSubject());
+			return false;
+		}
+		try {
+			submit(message, idempotencyKey);
+		} catch (MessagingException | RuntimeException e) {
+			releaseIdempotencyKey(idempotencyKey);
+			throw e;
+		}
+		return true;
+	}
+
+	private void submit(final FreemarkerMimeMessage message, final String idempotencyKey) throws MessagingException {
+		if (bufferPool != null && (message.getAttachments() == null || message.getAttachments().isEmpty())) {
+			// render now and keep only wire format while in the queue.
+			// messages with attachments are kept as is: attachments are
+			// already shared and streamed
+			MimeMessage mime = createMimeMessage(message);
+			if (mime == null) {
+				commitIdempotencyKey(idempotencyKey);
+				return;
+			}
+			final CompactMessage compact = CompactMessage.serialize(mime, bufferPool);
+			threadpool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					// don't reference original message. It should be
+					// garbage collected while this task is in the queue
+					MimeMessage queued = null;
+					try {
+						queued = compact.materialize();
+						mailSender.send(queued);
+						commitIdempotencyKey(idempotencyKey);
+					} catch (MessagingException e) {
+						releaseIdempotencyKey(idempotencyKey);
+						LOG.error("unable to send message: " + describe(queued), e);
+					} catch (RuntimeException e) {
+						releaseIdempotencyKey(idempotencyKey);
+						throw e;
+					} finally {
+						compact.release();
+					}
+				}
+			});
+		} else if (threadpool != null) {
 			threadpool.execute(new Runnable() {
 
 				@Override
 				public void run() {
 					try {
 						implSend(message);
+						commitIdempotencyKey(idempotencyKey);
 					} catch (MessagingException e) {
+						releaseIdempotencyKey(idempotencyKey);
 						LOG.error("unable to send message: " + message.getTo() + " subject: " + message.getSubject(), e);
+					} catch (RuntimeException e) {
+						releaseIdempotencyKey(idempotencyKey);
+						throw e;
 					}
 				}
 			});
 		} else {
 			implSend(message);
+			commitIdempotencyKey(idempotencyKey);
+		}
+	}
+
+	private void commitIdempotencyKey(String idempotencyKey) {
+		if (deduplicationIndex != null && idempotencyKey != null) {
+			deduplicationIndex.commit(idempotencyKey);
+		}
+	}
+
+	private void releaseIdempotencyKey(String idempotencyKey) {
+		if (deduplicationIndex != null && idempotencyKey != null) {
+			deduplicationIndex.release(idempotencyKey);
 		}
 	}
 
 	private void implSend(FreemarkerMimeMessage message) throws MessagingException {
-		Map<Object, Object> modelToUse;
-		if (message.getModel() == null) {
-			modelToUse = new HashMap<>();
-		} else {
-			modelToUse = message.getModel();
+		MimeMessage mime = createMimeMessage(message);
+		if (mime == null) {
+			return;
 		}
-		Calendar calendar = Calendar.getInstance();
-		// string for no-formatting
-		modelToUse.put("currentYear", String.valueOf(calendar.get(Calendar.YEAR)));
-		modelToUse.put("email", message.getTo().get(0));
+		mailSender.send(mime);
+	}
+
+	/**
+	 * @return message or <code>null</code> if sending is disabled
+	 */
+	private MimeMessage createMimeMessage(FreemarkerMimeMessage message) throws MessagingException {
+		LayeredTemplateModel modelToUse = new LayeredTemplateModel(freemarkerConfig.getObjectWrapper(), message.getTo().get(0), message.getModel(), message.getBatchModel());
 		String text;
 		try {
 			Template fTemplate = freemarkerConfig.getTemplate(message.getTemplate());
@@ -109,7 +221,7 @@ public class FreemarkerMailSender {
 		}
 		if (!enabled) {
 			LOG.info("sending message. subject: " + message.getSubject() + " body: " + text);
-			return;
+			return null;
 		}
 
 		MimeMessage mime = new MimeMessage((Session) null);
@@ -127,11 +239,33 @@ public class FreemarkerMailSender {
 		for (String cur : message.getTo()) {
 			mime.addRecipient(RecipientType.TO, new InternetAddress(cur));
 		}
-		mime.setContent(text, "text/html; charset=UTF-8");
+		if (message.getAttachments() == null || message.getAttachments().isEmpty()) {
+			mime.setContent(text, "text/html; charset=UTF-8");
+		} else {
+			MimeMultipart multipart = new MimeMultipart("mixed");
+			MimeBodyPart body = new MimeBodyPart();
+			body.setContent(text, "text/html; charset=UTF-8");
+			multipart.addBodyPart(body);
+			for (Attachment cur : message.getAttachments()) {
+				multipart.addBodyPart(cur.createBodyPart());
+			}
+			mime.setContent(multipart);
+		}
 		if (message.getReplyTo() != null) {
 			mime.setReplyTo(new InternetAddress[] { new InternetAddress(message.getReplyTo()) });
 		}
-		mailSender.send(mime);
+		return mime;
+	}
+
+	private static String describe(MimeMessage message) {
+		if (message == null) {
+			return "<unreadable>";
+		}
+		try {
+			return Arrays.toString(message.getRecipients(RecipientType.TO)) + " subject: " + message.getSubject();
+		} catch (MessagingException e) {
+			return "<unreadable>";
+		}
 	}
 
 	public void setTemplateClasspathPrefix(String templateClasspathPrefix) {
@@ -149,4 +283,56 @@ public class FreemarkerMailSender {
 	public void setUseSeparateThread(boolean useSeparateThread) {
 		this.useSeparateThread = useSeparateThread;
 	}
+
+	/**
+	 * @param compactQueue - render messages before queueing and keep them
+	 *                     serialized in pooled direct buffers until sent.
+	 *                     Used only with separate thread
+	 */
+	public void setCompactQueue(boolean compactQueue) {
+		this.compactQueue = compactQueue;
+	}
+
+	public void setCompactQueueMaxPooledSize(int compactQueueMaxPooledSize) {
+		this.compactQueueMaxPooledSize = compactQueueMaxPooledSize;
+	}
+
+	public void setCompactQueueMaxPooledBuffers(int compactQueueMaxPooledBuffers) {
+		this.compactQueueMaxPooledBuffers = compactQueueMaxPooledBuffers;
+	}
+
+	/**
+	 * @param compactQueueMaxPooledBytes - maximum capacity of idle buffers kept
+	 *                                   for reuse after queue drains
+	 */
+	public void setCompactQueueMaxPooledBytes(long compactQueueMaxPooledBytes) {
+		this.compactQueueMaxPooledBytes = compactQueueMaxPooledBytes;
+	}
+
+	/**
+	 * @return off-heap bytes held by queued messages. 0 if compact queue is
+	 *         disabled
+	 */
+	public long getCompactQueueBytes() {
+		if (bufferPool == null) {
+			return 0;
+		}
+		return bufferPool.getUsedBytes();
+	}
+
+	/**
+	 * @param deduplicationIndex - index to check idempotency keys against.
+	 *                           Its lifecycle is managed by the caller
+	 */
+	public void setDeduplicationIndex(DeduplicationIndex deduplicationIndex) {
+		this.deduplicationIndex = deduplicationIndex;
+	}
+
+	/**
+	 * @param sharedVariables - variables available in every template. They are
+	 *                        registered once during {@link #start()}
+	 */
+	public void setSharedVariables(Map<String, Object> sharedVariables) {
+		this.sharedVariables = sharedVariables;
+	}
 }
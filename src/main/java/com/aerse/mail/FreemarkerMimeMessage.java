@@ -7,12 +7,15 @@ import java.util.Map;
 public class FreemarkerMimeMessage {
 
 	private Map<Object, Object> model;
+	private Map<Object, Object> batchModel;
 	private String template;
 	private List<String> to;
 	private List<String> cc;
 	private List<String> bcc;
 	private String subject;
 	private String replyTo;
+	private List<Attachment> attachments;
+	private String idempotencyKey;
 	
 	public String getReplyTo() {
 		return replyTo;
@@ -42,6 +45,19 @@ public class FreemarkerMimeMessage {
 		this.model = model;
 	}
 
+	public Map<Object, Object> getBatchModel() {
+		return batchModel;
+	}
+
+	/**
+	 * @param batchModel - model shared by all messages of the same batch. It
+	 *                   is read-only and can be reused across threads.
+	 *                   Variables from the message model take precedence.
+	 */
+	public void setBatchModel(Map<Object, Object> batchModel) {
+		this.batchModel = batchModel;
+	}
+
 	public String getTemplate() {
 		return template;
 	}
@@ -82,4 +98,29 @@ public class FreemarkerMimeMessage {
 		this.subject = subject;
 	}
 
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	/**
+	 * @param idempotencyKey - key that identifies this message. Messages with
+	 *                       the same key are sent only once. See
+	 *                       {@link DeduplicationIndex}
+	 */
+	public void setIdempotencyKey(String idempotencyKey) {
+		this.idempotencyKey = idempotencyKey;
+	}
+
+	public void setAttachment(Attachment attachment) {
+		this.attachments = Collections.singletonList(attachment);
+	}
+
+	public List<Attachment> getAttachments() {
+		return attachments;
+	}
+
+	public void setAttachments(List<Attachment> attachments) {
+		this.attachments = attachments;
+	}
+
 }
@@ -0,0 +1,61 @@
+package com.aerse.mail;
+
+import java.util.Map;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * Read-only template root. Variables are resolved in the following order:
+ * <ol>
+ * <li>per-message overlay: "email"</li>
+ * <li>message model</li>
+ * <li>batch model</li>
+ * <li>shared variables registered in freemarker Configuration</li>
+ * </ol>
+ * Maps are never copied nor modified, so the same model maps can be shared
+ * between threads.
+ */
+class LayeredTemplateModel implements TemplateHashModel {
+
+	private static final String EMAIL = "email";
+
+	private final ObjectWrapper wrapper;
+	private final String email;
+	private final Map<Object, Object> model;
+	private final Map<Object, Object> batchModel;
+
+	LayeredTemplateModel(ObjectWrapper wrapper, String email, Map<Object, Object> model, Map<Object, Object> batchModel) {
+		this.wrapper = wrapper;
+		this.email = email;
+		this.model = model;
+		this.batchModel = batchModel;
+	}
+
+	@Override
+	public TemplateModel get(String key) throws TemplateModelException {
+		if (EMAIL.equals(key)) {
+			return wrapper.wrap(email);
+		}
+		Object result = null;
+		if (model != null) {
+			result = model.get(key);
+		}
+		if (result == null && batchModel != null) {
+			result = batchModel.get(key);
+		}
+		if (result == null) {
+			// fallback to shared variables
+			return null;
+		}
+		return wrapper.wrap(result);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return false;
+	}
+
+}
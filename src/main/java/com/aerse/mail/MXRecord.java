@@ -4,10 +4,12 @@ class MXRecord {
 
 	private final Integer priority;
 	private final String value;
+	private final String host;
 
-	MXRecord(Integer priority, String value) {
+	MXRecord(Integer priority, String value, String host) {
 		this.priority = priority;
 		this.value = value;
+		this.host = host;
 	}
 
 	public Integer getPriority() {
@@ -18,9 +20,16 @@ class MXRecord {
 		return value;
 	}
 
+	/**
+	 * @return host name from MX record. {@link #getValue()} is its address
+	 */
+	public String getHost() {
+		return host;
+	}
+
 	@Override
 	public String toString() {
-		return "MXRecord [priority=" + priority + ", value=" + value + "]";
+		return "MXRecord [priority=" + priority + ", value=" + value + ", host=" + host + "]";
 	}
 
 }
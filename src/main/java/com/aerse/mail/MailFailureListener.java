@@ -0,0 +1,20 @@
+package com.aerse.mail;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Receives messages that were accepted by asynchronous sender, but could not
+ * be delivered. For example: to release idempotency key or to re-queue
+ * message.
+ */
+public interface MailFailureListener {
+
+	/**
+	 * Called from sender's worker thread.
+	 *
+	 * @param message - message that was not sent
+	 * @param e       - reason
+	 */
+	void onFailure(Message message, MessagingException e);
+}
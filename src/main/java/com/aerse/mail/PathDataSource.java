@@ -0,0 +1,48 @@
+package com.aerse.mail;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.activation.DataSource;
+
+/**
+ * Read-only DataSource, that opens file on every read. Nothing is kept in
+ * memory between reads.
+ */
+class PathDataSource implements DataSource {
+
+	private final Path path;
+	private final String contentType;
+	private final String name;
+
+	PathDataSource(Path path, String contentType, String name) {
+		this.path = path;
+		this.contentType = contentType;
+		this.name = name;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new BufferedInputStream(Files.newInputStream(path));
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		throw new UnsupportedOperationException("read-only data source");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+}
@@ -1,8 +1,10 @@
 package com.aerse.mail;
 
-import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -23,6 +25,8 @@ public class RelayMailSender implements IMailSender {
 	private static final Logger LOG = LoggerFactory.getLogger(RelayMailSender.class);
 
 	private long connectionTimeoutMillis;
+	private AdaptiveTimeouts adaptiveTimeouts;
+	private SmtpTracer smtpTracer;
 
 	private String fromEmail;
 	private String fromName;
@@ -33,11 +37,24 @@ public class RelayMailSender implements IMailSender {
 	private String password;
 	private PasswordAuthenticator auth;
 
+	// parameters for tls
+	private String[] tlsProtocols;
+	private String[] tlsCipherSuites;
+	private int tlsSessionCacheSize = 100;
+	private int tlsSessionTimeoutSeconds = 3600;
+	private boolean tlsStatisticsEnabled;
+
 	private InternetAddress from;
+	private SmtpSSLSocketFactory sslSocketFactory;
 
 	public void start() throws UnsupportedEncodingException {
 		from = new InternetAddress(fromEmail, fromName, "UTF-8");
 		auth = new PasswordAuthenticator(username, password);
+		try {
+			sslSocketFactory = new SmtpSSLSocketFactory(tlsProtocols, tlsCipherSuites, tlsSessionCacheSize, tlsSessionTimeoutSeconds, tlsStatisticsEnabled);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("unable to initialize tls", e);
+		}
 	}
 
 	@Override
@@ -48,35 +65,56 @@ public class RelayMailSender implements IMailSender {
 		props.setProperty("mail.smtps.port", String.valueOf(port));
 		props.setProperty("mail.smtps.user", username);
 		props.setProperty("mail.smtps.starttls.enable", "true");
-		props.setProperty("mail.smtps.ssl.trust", "*");
+		props.put("mail.smtps.ssl.socketFactory", sslSocketFactory);
 		props.setProperty("mail.smtps.ssl.enable", "true");
 		props.setProperty("mail.smtps.requiresAuthentication", "true");
 		props.setProperty("mail.smtps.isSecure", "true");
 		props.setProperty("mail.smtps.auth", "true");
 
-		String timeoutMillisStr = String.valueOf(connectionTimeoutMillis);
+		String timeoutMillisStr;
+		String connectionTimeoutMillisStr;
+		if (adaptiveTimeouts != null) {
+			timeoutMillisStr = String.valueOf(adaptiveTimeouts.getReadTimeoutMillis(host));
+			connectionTimeoutMillisStr = String.valueOf(adaptiveTimeouts.getConnectTimeoutMillis(host));
+		} else {
+			timeoutMillisStr = String.valueOf(connectionTimeoutMillis);
+			connectionTimeoutMillisStr = timeoutMillisStr;
+		}
 		props.setProperty("mail.smtps.timeout", timeoutMillisStr);
-		props.setProperty("mail.smtps.connectiontimeout", timeoutMillisStr);
+		props.setProperty("mail.smtps.connectiontimeout", connectionTimeoutMillisStr);
 
 		Session session = Session.getInstance(props, auth);
-		if (LOG.isDebugEnabled()) {
-			try (PrintStream out = new PrintStream(new Log4jPrintStream(LOG), false, "UTF-8")) {
-				session.setDebugOut(out);
-				session.setDebug(true);
-			} catch (UnsupportedEncodingException e) {
-				throw new RuntimeException(e);
-			}
+		SmtpTrace trace = null;
+		if (smtpTracer != null) {
+			trace = smtpTracer.start(session, null, host);
 		}
 		message.setFrom(from);
 
+		boolean success = false;
 		Transport t = null;
 		try {
 			t = session.getTransport();
+			long start = System.nanoTime();
 			t.connect(host, port, username, password);
+			if (adaptiveTimeouts != null) {
+				adaptiveTimeouts.recordConnect(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
 			t.sendMessage(message, message.getAllRecipients());
+			success = true;
+		} catch (MessagingException e) {
+			if (adaptiveTimeouts != null && DirectMailSender.hasRootCause(e, SocketTimeoutException.class)) {
+				adaptiveTimeouts.recordTimeout(host);
+			}
+			throw e;
 		} finally {
-			if (t != null) {
-				t.close();
+			try {
+				if (t != null) {
+					t.close();
+				}
+			} finally {
+				if (smtpTracer != null) {
+					smtpTracer.finish(trace, LOG, !success, "unable to send through: " + host);
+				}
 			}
 		}
 	}
@@ -85,6 +123,25 @@ public class RelayMailSender implements IMailSender {
 		this.connectionTimeoutMillis = connectionTimeoutMillis;
 	}
 
+	/**
+	 * @param adaptiveTimeouts - timeouts derived from relay latency. If set,
+	 *                         then connectionTimeoutMillis is ignored. Only
+	 *                         connect latency is recorded: wait for the final
+	 *                         reply cannot be separated from transfer of
+	 *                         arbitrary message, so read timeout stays at
+	 *                         maxTimeoutMillis
+	 */
+	public void setAdaptiveTimeouts(AdaptiveTimeouts adaptiveTimeouts) {
+		this.adaptiveTimeouts = adaptiveTimeouts;
+	}
+
+	/**
+	 * @param smtpTracer - protocol tracing for failed sessions
+	 */
+	public void setSmtpTracer(SmtpTracer smtpTracer) {
+		this.smtpTracer = smtpTracer;
+	}
+
 	public void setFromEmail(String fromEmail) {
 		this.fromEmail = fromEmail;
 	}
@@ -109,4 +166,36 @@ public class RelayMailSender implements IMailSender {
 		this.password = password;
 	}
 
+	public void setTlsProtocols(String[] tlsProtocols) {
+		this.tlsProtocols = tlsProtocols;
+	}
+
+	public void setTlsCipherSuites(String[] tlsCipherSuites) {
+		this.tlsCipherSuites = tlsCipherSuites;
+	}
+
+	public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+		this.tlsSessionCacheSize = tlsSessionCacheSize;
+	}
+
+	public void setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+		this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+	}
+
+	/**
+	 * @param tlsStatisticsEnabled - count handshakes and session resumptions.
+	 *                             Costs a thread start per handshake
+	 */
+	public void setTlsStatisticsEnabled(boolean tlsStatisticsEnabled) {
+		this.tlsStatisticsEnabled = tlsStatisticsEnabled;
+	}
+
+	/**
+	 * @return shared socket factory with TLS session resumption statistics.
+	 *         Available after {@link #start()}
+	 */
+	public SmtpSSLSocketFactory getSslSocketFactory() {
+		return sslSocketFactory;
+	}
+
 }
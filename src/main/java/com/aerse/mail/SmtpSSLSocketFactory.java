@@ -0,0 +1,244 @@
+package com.aerse.mail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * SSLSocketFactory shared by all connections of a single mail sender. Backed
+ * by one <code>SSLContext</code>, so its client session cache (keyed by peer
+ * host and port) lets repeat connections to the same MX use abbreviated
+ * handshakes. Both SMTPS and STARTTLS connections go through this factory.
+ *
+ * Direct delivery connects to MX addresses. Sessions should be cached by MX
+ * host name, because MX pools return addresses in different order. Use
+ * {@link #forHost(String)} to get per-connection factory that replaces the
+ * peer address with the host name. It is also sent as SNI.
+ *
+ * Resumption statistics are optional: the JDK starts a separate thread for
+ * every handshake to report it.
+ *
+ * All server certificates are trusted. This matches previous
+ * <code>mail.smtp.ssl.trust=*</code> behaviour: TLS is used opportunistically
+ * for direct delivery.
+ */
+public class SmtpSSLSocketFactory extends SSLSocketFactory {
+
+	private final SSLSocketFactory delegate;
+	private final String[] protocols;
+	private final String[] cipherSuites;
+	private final boolean collectStatistics;
+
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
+	SmtpSSLSocketFactory(String[] protocols, String[] cipherSuites, int sessionCacheSize, int sessionTimeoutSeconds, boolean collectStatistics) throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new TrustAllManager() }, null);
+		SSLSessionContext sessionContext = context.getClientSessionContext();
+		sessionContext.setSessionCacheSize(sessionCacheSize);
+		sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+		this.delegate = context.getSocketFactory();
+		this.protocols = protocols;
+		this.cipherSuites = cipherSuites;
+		this.collectStatistics = collectStatistics;
+	}
+
+	/**
+	 * @param host - host name to cache sessions by and to send in SNI
+	 * @return factory sharing session cache and statistics with this one
+	 */
+	SSLSocketFactory forHost(String host) {
+		return new HostSocketFactory(host);
+	}
+
+	/**
+	 * @return number of completed TLS handshakes. Always 0 if statistics are
+	 *         not collected
+	 */
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	/**
+	 * @return number of handshakes completed by resuming cached session
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * @return ratio of resumed handshakes to all handshakes. 0.0 if there were
+	 *         no handshakes yet
+	 */
+	public double getResumptionHitRate() {
+		long total = handshakes.get();
+		if (total == 0) {
+			return 0.0;
+		}
+		return (double) resumedHandshakes.get() / total;
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		if (cipherSuites != null) {
+			return cipherSuites.clone();
+		}
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return configure(delegate.createSocket());
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return configure(delegate.createSocket(s, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return configure(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return configure(delegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return configure(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return configure(delegate.createSocket(address, port, localAddress, localPort));
+	}
+
+	private Socket configure(Socket socket) {
+		if (!(socket instanceof SSLSocket)) {
+			return socket;
+		}
+		SSLSocket sslSocket = (SSLSocket) socket;
+		if (protocols != null) {
+			sslSocket.setEnabledProtocols(protocols);
+		}
+		if (cipherSuites != null) {
+			sslSocket.setEnabledCipherSuites(cipherSuites);
+		}
+		if (collectStatistics) {
+			// JDK notifies listeners from a new thread per handshake
+			sslSocket.addHandshakeCompletedListener(new ResumptionListener(System.currentTimeMillis()));
+		}
+		return sslSocket;
+	}
+
+	/**
+	 * STARTTLS layers TLS over connected socket and passes the address
+	 * JavaMail connected to. Replace it with the host name.
+	 */
+	private class HostSocketFactory extends SSLSocketFactory {
+
+		private final String host;
+
+		HostSocketFactory(String host) {
+			this.host = host;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return SmtpSSLSocketFactory.this.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return SmtpSSLSocketFactory.this.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return SmtpSSLSocketFactory.this.createSocket();
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String peerHost, int port, boolean autoClose) throws IOException {
+			return SmtpSSLSocketFactory.this.createSocket(s, host, port, autoClose);
+		}
+
+		@Override
+		public Socket createSocket(String peerHost, int port) throws IOException {
+			return SmtpSSLSocketFactory.this.createSocket(peerHost, port);
+		}
+
+		@Override
+		public Socket createSocket(String peerHost, int port, InetAddress localHost, int localPort) throws IOException {
+			return SmtpSSLSocketFactory.this.createSocket(peerHost, port, localHost, localPort);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port) throws IOException {
+			return SmtpSSLSocketFactory.this.createSocket(address, port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return SmtpSSLSocketFactory.this.createSocket(address, port, localAddress, localPort);
+		}
+	}
+
+	private class ResumptionListener implements HandshakeCompletedListener {
+
+		private final long socketCreated;
+
+		ResumptionListener(long socketCreated) {
+			this.socketCreated = socketCreated;
+		}
+
+		@Override
+		public void handshakeCompleted(HandshakeCompletedEvent event) {
+			handshakes.incrementAndGet();
+			// session created before this socket means it was taken from the
+			// cache
+			if (event.getSession().getCreationTime() < socketCreated) {
+				resumedHandshakes.incrementAndGet();
+			}
+		}
+	}
+
+	private static class TrustAllManager implements X509TrustManager {
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			// do nothing
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			// do nothing
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.aerse.mail;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+
+/**
+ * Ring buffer of SMTP commands and responses of a single session. Installed
+ * as JavaMail debug output. Lines are copied into preallocated arrays, so
+ * recording doesn't allocate. Message content between "354" response and
+ * terminating "." and JavaMail diagnostic lines starting with "DEBUG" are
+ * skipped. Lines longer than maxLineLength are truncated.
+ *
+ * Not thread-safe. Instances are reused by {@link SmtpTracer}.
+ */
+class SmtpTrace extends OutputStream {
+
+	private static final String DATE_FORMAT = "HH:mm:ss.SSS";
+	private static final byte[] DEBUG_PREFIX = "DEBUG".getBytes(StandardCharsets.US_ASCII);
+
+	private final int maxLineLength;
+	private final byte[] events;
+	private final int[] lengths;
+	private final long[] timestamps;
+	private final byte[] line;
+
+	private int lineLength;
+	private int next;
+	private long count;
+	private boolean inData;
+
+	SmtpTrace(int maxEvents, int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+		this.events = new byte[maxEvents * maxLineLength];
+		this.lengths = new int[maxEvents];
+		this.timestamps = new long[maxEvents];
+		this.line = new byte[maxLineLength];
+	}
+
+	@Override
+	public void write(int b) {
+		append((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			append(b[i]);
+		}
+	}
+
+	private void append(byte b) {
+		if (b == '\n') {
+			endLine();
+		} else if (b != '\r' && lineLength < maxLineLength) {
+			line[lineLength++] = b;
+		}
+	}
+
+	private void endLine() {
+		if (inData) {
+			if (lineLength == 1 && line[0] == '.') {
+				inData = false;
+			}
+		} else if (!isDebug()) {
+			if (lineLength >= 3 && line[0] == '3' && line[1] == '5' && line[2] == '4') {
+				inData = true;
+			}
+			record();
+		}
+		lineLength = 0;
+	}
+
+	// JavaMail's own diagnostics, not protocol
+	private boolean isDebug() {
+		if (lineLength < DEBUG_PREFIX.length) {
+			return false;
+		}
+		for (int i = 0; i < DEBUG_PREFIX.length; i++) {
+			if (line[i] != DEBUG_PREFIX[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void record() {
+		System.arraycopy(line, 0, events, next * maxLineLength, lineLength);
+		lengths[next] = lineLength;
+		timestamps[next] = System.currentTimeMillis();
+		next = (next + 1) % lengths.length;
+		count++;
+	}
+
+	/**
+	 * Log recorded events as a single message.
+	 * 
+	 * @param log    - logger to use
+	 * @param reason - why trace is dumped
+	 */
+	void dump(Logger log, String reason) {
+		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		StringBuilder result = new StringBuilder();
+		result.append("smtp trace. ").append(reason);
+		int recorded = (int) Math.min(count, lengths.length);
+		if (count > recorded) {
+			result.append("\n... ").append(count - recorded).append(" earlier event(s) dropped");
+		}
+		int first = count > lengths.length ? next : 0;
+		for (int i = 0; i < recorded; i++) {
+			int index = (first + i) % lengths.length;
+			result.append('\n').append(format.format(new Date(timestamps[index]))).append(' ');
+			result.append(new String(events, index * maxLineLength, lengths[index], StandardCharsets.UTF_8));
+		}
+		log.info(result.toString());
+	}
+
+	void reset() {
+		lineLength = 0;
+		next = 0;
+		count = 0;
+		inData = false;
+	}
+
+}
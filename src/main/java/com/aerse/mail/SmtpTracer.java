@@ -0,0 +1,139 @@
+package com.aerse.mail;
+
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+
+/**
+ * SMTP protocol tracing. Commands and responses of sampled sessions are
+ * recorded into per-session ring buffer and logged only if session fails.
+ * Message content and JavaMail's own "DEBUG" lines are never recorded.
+ *
+ * Sampling limits what is kept, not what is written: every byte of a traced
+ * session, including message content, still goes through JavaMail's
+ * synchronized debug PrintStream. Traced sessions are slower than untraced
+ * ones, so keep sample rate low or restrict tracing to the domains under
+ * investigation.
+ *
+ * Spring-friendly. Here is sample configuration to trace every session to the
+ * single domain:
+ * 
+ * <pre>
+ * {
+ * 	&#064;code
+ * 	SmtpTracer tracer = new SmtpTracer();
+ * 	tracer.setDomains(Collections.singleton(&quot;example.com&quot;));
+ * 	tracer.setSampleRate(1.0);
+ * 	sender.setSmtpTracer(tracer);
+ * }
+ * </pre>
+ */
+public class SmtpTracer {
+
+	private double sampleRate = 1.0;
+	private Set<String> domains;
+	private int maxEvents = 64;
+	private int maxLineLength = 256;
+	private int maxPooled = 64;
+
+	private final Queue<SmtpTrace> pool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Enable tracing for the session if it is sampled.
+	 * 
+	 * @param session - JavaMail session
+	 * @param domain  - recipient domain. Might be null
+	 * @param host    - remote host name. For direct delivery it is the MX
+	 *                host name, not its address
+	 * @return trace or <code>null</code> if session is not traced
+	 */
+	SmtpTrace start(Session session, String domain, String host) {
+		if (domains != null && !matches(domain) && !matches(host)) {
+			return null;
+		}
+		if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return null;
+		}
+		SmtpTrace result = pool.poll();
+		if (result == null) {
+			result = new SmtpTrace(maxEvents, maxLineLength);
+		}
+		session.setDebugOut(new PrintStream(result, false));
+		session.setDebug(true);
+		return result;
+	}
+
+	/**
+	 * Finish session tracing.
+	 * 
+	 * @param trace  - trace returned from
+	 *               {@link #start(Session, String, String)}. Might be null
+	 * @param log    - logger to dump trace to
+	 * @param failed - dump trace only if session failed
+	 * @param reason - failure description
+	 */
+	void finish(SmtpTrace trace, Logger log, boolean failed, String reason) {
+		if (trace == null) {
+			return;
+		}
+		if (failed) {
+			trace.dump(log, reason);
+		}
+		trace.reset();
+		if (pool.size() < maxPooled) {
+			pool.offer(trace);
+		}
+	}
+
+	private boolean matches(String value) {
+		return value != null && domains.contains(value.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * @param sampleRate - fraction of sessions to trace. From 0.0 to 1.0
+	 */
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @param domains - trace only sessions to these recipient domains or MX
+	 *                host names as published in DNS (for example:
+	 *                mx1.example.com). <code>null</code> to trace all
+	 */
+	public void setDomains(Set<String> domains) {
+		if (domains == null) {
+			this.domains = null;
+			return;
+		}
+		Set<String> result = new HashSet<>();
+		for (String cur : domains) {
+			result.add(cur.toLowerCase(Locale.ENGLISH));
+		}
+		this.domains = result;
+	}
+
+	/**
+	 * @param maxEvents - number of the latest commands and responses to keep
+	 *                  per session
+	 */
+	public void setMaxEvents(int maxEvents) {
+		this.maxEvents = maxEvents;
+	}
+
+	public void setMaxLineLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	public void setMaxPooled(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+}
@@ -0,0 +1,539 @@
+package com.aerse.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.naming.NamingException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spool shared by several processes on the same host. {@link #send(Message)}
+ * writes message into the spool directory. Partition is selected by hash of
+ * recipient domain. Worker threads of every process sharing the directory
+ * claim partitions and deliver messages through <code>mailSender</code>.
+ *
+ * Spool directory layout:
+ * <ul>
+ * <li><code>tmp</code> - messages being written</li>
+ * <li><code>partitions/&lt;n&gt;</code> - messages waiting for delivery. File
+ * name starts with the time of the next attempt</li>
+ * <li><code>leases/&lt;n&gt;.lease</code> - owner and expiration of partition
+ * lease. Updated only under <code>FileChannel</code> lock</li>
+ * <li><code>failed</code> - messages that could not be delivered</li>
+ * </ul>
+ *
+ * Lease is renewed in background every third of <code>leaseMillis</code>
+ * while partition is processed, so a long send does not lose it. Partition is
+ * released after <code>leaseMillis</code> of work, so that other processes get
+ * their share. If owner crashes or hangs, lease expires and partition is taken
+ * over by another process.
+ *
+ * Transient failures (connection problems, 4xx replies) are retried with
+ * exponential backoff starting from <code>retryDelayMillis</code>. Permanent
+ * failures, messages with unknown delivery status and messages that failed
+ * <code>maxAttempts</code> times are moved into <code>failed</code>.
+ */
+public class SpoolMailSender implements IMailSender {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SpoolMailSender.class);
+
+	private IMailSender mailSender;
+	private String spoolDirectory;
+	private int partitions = 64;
+	private int threads = 2;
+	private long leaseMillis = 60000;
+	private long pollIntervalMillis = 1000;
+	private long retryDelayMillis = 60000;
+	private long maxRetryDelayMillis = 60 * 60 * 1000L;
+	private int maxAttempts = 10;
+
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+	private Path tmpDir;
+	private Path partitionsDir;
+	private Path leasesDir;
+	private Path failedDir;
+	private AtomicIntegerArray claimed;
+	// FileChannel locks cannot be taken twice by one process
+	private Object[] leaseLocks;
+	private ExecutorService threadpool;
+	private ScheduledThreadPoolExecutor leaseRenewal;
+	private volatile boolean running;
+
+	public void start() throws IOException {
+		if (mailSender == null) {
+			throw new IllegalStateException("mail sender should be specified");
+		}
+		if (spoolDirectory == null) {
+			throw new IllegalStateException("spool directory should be specified");
+		}
+		Path basedir = Files.createDirectories(Paths.get(spoolDirectory));
+		tmpDir = Files.createDirectories(basedir.resolve("tmp"));
+		partitionsDir = Files.createDirectories(basedir.resolve("partitions"));
+		leasesDir = Files.createDirectories(basedir.resolve("leases"));
+		failedDir = Files.createDirectories(basedir.resolve("failed"));
+		for (int i = 0; i < partitions; i++) {
+			Files.createDirectories(partitionsDir.resolve(String.valueOf(i)));
+		}
+		claimed = new AtomicIntegerArray(partitions);
+		leaseLocks = new Object[partitions];
+		for (int i = 0; i < partitions; i++) {
+			leaseLocks[i] = new Object();
+		}
+		running = true;
+		leaseRenewal = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory("aerse-email-spool-lease"));
+		// keep renewing leases of messages being sent during shutdown
+		leaseRenewal.setContinueExistingPeriodicTasksAfterShutdownPolicy(true);
+		threadpool = Executors.newFixedThreadPool(threads, new NamingThreadFactory("aerse-email-spool"));
+		for (int i = 0; i < threads; i++) {
+			threadpool.execute(new Worker());
+		}
+	}
+
+	public void stop() {
+		running = false;
+		if (threadpool != null) {
+			threadpool.shutdown();
+		}
+		if (leaseRenewal != null) {
+			leaseRenewal.shutdown();
+		}
+	}
+
+	@Override
+	public void send(Message message) throws MessagingException {
+		String domain = DirectMailSender.getRecipientDomain(message).toLowerCase(Locale.ENGLISH);
+		int partition = (domain.hashCode() & Integer.MAX_VALUE) % partitions;
+		// name starts with timestamp, so messages are delivered in order
+		String name = String.format("%013d-%s.eml", System.currentTimeMillis(), UUID.randomUUID());
+		Path tmp = tmpDir.resolve(name);
+		try {
+			try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+				message.writeTo(os);
+			}
+			Files.move(tmp, partitionsDir.resolve(String.valueOf(partition)).resolve(name), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			deleteQuietly(tmp);
+			throw new MessagingException("unable to spool message", e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if at least one message was processed
+	 */
+	private boolean processPartition(final int partition) {
+		Path dir = partitionsDir.resolve(String.valueOf(partition));
+		List<Path> files = listMessages(dir, System.currentTimeMillis());
+		if (files.isEmpty()) {
+			return false;
+		}
+		if (!updateLease(partition, false)) {
+			return false;
+		}
+		final AtomicBoolean leaseLost = new AtomicBoolean();
+		long renewalMillis = Math.max(1, leaseMillis / 3);
+		ScheduledFuture<?> renewal;
+		try {
+			renewal = leaseRenewal.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					if (!updateLease(partition, true)) {
+						leaseLost.set(true);
+					}
+				}
+			}, renewalMillis, renewalMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped
+			releaseLease(partition);
+			return false;
+		}
+		boolean result = false;
+		try {
+			long deadline = System.currentTimeMillis() + leaseMillis;
+			for (Path cur : files) {
+				if (!running || System.currentTimeMillis() > deadline) {
+					break;
+				}
+				if (leaseLost.get()) {
+					LOG.info("lease lost for partition: " + partition);
+					break;
+				}
+				deliver(cur);
+				result = true;
+			}
+		} finally {
+			renewal.cancel(false);
+			releaseLease(partition);
+		}
+		return result;
+	}
+
+	private void deliver(Path file) {
+		MimeMessage message;
+		try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+			message = new MimeMessage((Session) null, is);
+		} catch (NoSuchFileException e) {
+			// delivered by the previous lease owner
+			return;
+		} catch (IOException | MessagingException e) {
+			LOG.error("unable to read spooled message: " + file, e);
+			moveToFailed(file);
+			return;
+		}
+		try {
+			mailSender.send(message);
+		} catch (MessagingException e) {
+			int attempt = getAttempt(file) + 1;
+			if (isTransient(e) && attempt < maxAttempts) {
+				LOG.info("unable to send spooled message: " + file + " attempt: " + attempt + " reason: " + e.getMessage());
+				scheduleRetry(file, attempt);
+			} else {
+				LOG.error("unable to send spooled message: " + file, e);
+				moveToFailed(file);
+			}
+			return;
+		}
+		deleteQuietly(file);
+	}
+
+	private void scheduleRetry(Path file, int attempt) {
+		long delay = retryDelayMillis;
+		for (int i = 1; i < attempt && delay < maxRetryDelayMillis; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxRetryDelayMillis);
+		String name = String.format("%013d-%s.%d.eml", System.currentTimeMillis() + delay, getId(file), attempt);
+		try {
+			Files.move(file, file.resolveSibling(name), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.error("unable to reschedule message: " + file, e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if nothing was transmitted or server asked to
+	 *         try later
+	 */
+	private static boolean isTransient(MessagingException e) {
+		for (Throwable cur = e; cur != null; cur = cur.getCause()) {
+			if (cur instanceof DeliveryStatusUnknownException) {
+				return false;
+			}
+			Integer code = null;
+			if (cur instanceof SMTPSendFailedException) {
+				code = ((SMTPSendFailedException) cur).getReturnCode();
+			} else if (cur instanceof SMTPAddressFailedException) {
+				code = ((SMTPAddressFailedException) cur).getReturnCode();
+			} else if (cur instanceof SMTPSenderFailedException) {
+				code = ((SMTPSenderFailedException) cur).getReturnCode();
+			}
+			if (code != null) {
+				return code >= 400 && code < 500;
+			}
+			if (cur instanceof IOException || cur instanceof NamingException || cur instanceof DeadlineExceededException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getId(Path file) {
+		String id = getIdAndAttempt(file);
+		int index = id.indexOf('.');
+		if (index != -1) {
+			return id.substring(0, index);
+		}
+		return id;
+	}
+
+	private static int getAttempt(Path file) {
+		String id = getIdAndAttempt(file);
+		int index = id.indexOf('.');
+		if (index == -1) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(id.substring(index + 1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// file name: <next attempt>-<id>[.<attempt>].eml
+	private static String getIdAndAttempt(Path file) {
+		String name = file.getFileName().toString();
+		int index = name.indexOf('-');
+		if (index == -1 || !name.endsWith(".eml")) {
+			return name;
+		}
+		return name.substring(index + 1, name.length() - ".eml".length());
+	}
+
+	/**
+	 * Acquire or renew partition lease.
+	 *
+	 * @param renewOnly - do not acquire lease owned by nobody
+	 * @return <code>true</code> if lease belongs to this process till now +
+	 *         leaseMillis
+	 */
+	private boolean updateLease(int partition, boolean renewOnly) {
+		Path leaseFile = leasesDir.resolve(partition + ".lease");
+		synchronized (leaseLocks[partition]) {
+			try (FileChannel channel = FileChannel.open(leaseFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					Lease current = readLease(channel);
+					long now = System.currentTimeMillis();
+					boolean owned = current != null && current.owner.equals(owner);
+					if (renewOnly) {
+						// released lease cannot be renewed
+						if (!owned || current.expiration == 0) {
+							return false;
+						}
+					} else if (!owned) {
+						if (current != null && current.expiration > now) {
+							return false;
+						}
+						if (current != null && current.expiration != 0) {
+							LOG.info("taking over expired lease for partition: " + partition + " from: " + current.owner);
+						}
+					}
+					writeLease(channel, new Lease(now + leaseMillis, owner));
+					return true;
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				LOG.error("unable to update lease: " + leaseFile, e);
+				return false;
+			}
+		}
+	}
+
+	private void releaseLease(int partition) {
+		Path leaseFile = leasesDir.resolve(partition + ".lease");
+		synchronized (leaseLocks[partition]) {
+			try (FileChannel channel = FileChannel.open(leaseFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					Lease current = readLease(channel);
+					if (current != null && current.owner.equals(owner)) {
+						writeLease(channel, new Lease(0, owner));
+					}
+				} finally {
+					lock.release();
+				}
+			} catch (IOException e) {
+				LOG.error("unable to release lease: " + leaseFile, e);
+			}
+		}
+	}
+
+	private static Lease readLease(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 8) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) size);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, buf.position()) == -1) {
+				break;
+			}
+		}
+		buf.flip();
+		long expiration = buf.getLong();
+		return new Lease(expiration, StandardCharsets.UTF_8.decode(buf).toString());
+	}
+
+	private static void writeLease(FileChannel channel, Lease lease) throws IOException {
+		byte[] ownerBytes = lease.owner.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(8 + ownerBytes.length);
+		buf.putLong(lease.expiration);
+		buf.put(ownerBytes);
+		buf.flip();
+		channel.truncate(0);
+		while (buf.hasRemaining()) {
+			channel.write(buf, buf.position());
+		}
+	}
+
+	/**
+	 * @return messages due for delivery in order
+	 */
+	private static List<Path> listMessages(Path dir, long now) {
+		List<Path> result = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path cur : stream) {
+				if (getNextAttempt(cur) <= now) {
+					result.add(cur);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("unable to list spool: " + dir, e);
+			return Collections.emptyList();
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	private static long getNextAttempt(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('-')));
+		} catch (RuntimeException e) {
+			// not a spooled message. let delivery move it into failed
+			return 0;
+		}
+	}
+
+	private void moveToFailed(Path file) {
+		try {
+			Files.move(file, failedDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOG.error("unable to move failed message: " + file, e);
+		}
+	}
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			LOG.error("unable to delete: " + file, e);
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (running) {
+				boolean processed = false;
+				int offset = ThreadLocalRandom.current().nextInt(partitions);
+				for (int i = 0; i < partitions && running; i++) {
+					int partition = (offset + i) % partitions;
+					// FileChannel locks are per process. Make sure only one
+					// thread works with the partition
+					if (!claimed.compareAndSet(partition, 0, 1)) {
+						continue;
+					}
+					try {
+						processed |= processPartition(partition);
+					} catch (RuntimeException e) {
+						LOG.error("unable to process partition: " + partition, e);
+					} finally {
+						claimed.set(partition, 0);
+					}
+				}
+				if (!processed) {
+					try {
+						Thread.sleep(pollIntervalMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	private static class Lease {
+
+		private final long expiration;
+		private final String owner;
+
+		Lease(long expiration, String owner) {
+			this.expiration = expiration;
+			this.owner = owner;
+		}
+	}
+
+	public void setMailSender(IMailSender mailSender) {
+		this.mailSender = mailSender;
+	}
+
+	/**
+	 * @param spoolDirectory - directory shared by all processes
+	 */
+	public void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * @param partitions - number of partitions. Should be the same for all
+	 *                   processes sharing the spool
+	 */
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setLeaseMillis(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+	}
+
+	public void setPollIntervalMillis(long pollIntervalMillis) {
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	/**
+	 * @param retryDelayMillis - delay before the first retry of transient
+	 *                         failure. Doubled for every next attempt
+	 */
+	public void setRetryDelayMillis(long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	public void setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+		this.maxRetryDelayMillis = maxRetryDelayMillis;
+	}
+
+	/**
+	 * @param maxAttempts - number of attempts before message is moved into
+	 *                    failed
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+}
@@ -0,0 +1,101 @@
+package com.aerse.mail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Memory footprint of queued messages. Compares:
+ * <ul>
+ * <li><code>FreemarkerMimeMessage</code> with model - what separate thread
+ * queue holds by default</li>
+ * <li>rendered <code>MimeMessage</code> - what queue of {@link IMailSender}
+ * would hold</li>
+ * <li>{@link CompactMessage} - heap and off-heap</li>
+ * </ul>
+ * Usage: <code>mvn test -Pbenchmark [-Dbenchmark.messages=100000]</code>
+ */
+class CompactQueueBenchmark {
+
+	private static final String BODY_LINE = "<p>Hello, dear customer. Your order has been shipped and will arrive soon.</p>\n";
+
+	public static void main(String[] args) throws Exception {
+		int count = 100000;
+		if (args.length > 0) {
+			count = Integer.parseInt(args[0]);
+		}
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			body.append(BODY_LINE);
+		}
+		String html = body.toString();
+
+		long before = usedHeap();
+		List<Object> queue = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			queue.add(createFreemarkerMessage(i));
+		}
+		report("FreemarkerMimeMessage", count, usedHeap() - before, 0);
+		queue.clear();
+
+		before = usedHeap();
+		for (int i = 0; i < count; i++) {
+			queue.add(createMimeMessage(i, html));
+		}
+		report("MimeMessage", count, usedHeap() - before, 0);
+		queue.clear();
+
+		DirectBufferPool pool = new DirectBufferPool(64 * 1024, 64, 8 * 1024 * 1024);
+		before = usedHeap();
+		for (int i = 0; i < count; i++) {
+			queue.add(CompactMessage.serialize(createMimeMessage(i, html), pool));
+		}
+		report("CompactMessage", count, usedHeap() - before, pool.getUsedBytes());
+		for (Object cur : queue) {
+			((CompactMessage) cur).release();
+		}
+		queue.clear();
+	}
+
+	private static FreemarkerMimeMessage createFreemarkerMessage(int index) {
+		Map<Object, Object> model = new HashMap<>();
+		model.put("name", "Customer " + index);
+		model.put("orderId", String.valueOf(index));
+		model.put("trackingUrl", "https://example.com/track/" + index);
+		FreemarkerMimeMessage result = new FreemarkerMimeMessage();
+		result.setTo("user" + index + "@example.com");
+		result.setSubject("Your order " + index + " has been shipped");
+		result.setTemplate("shipped.ftl");
+		result.setModel(model);
+		return result;
+	}
+
+	private static MimeMessage createMimeMessage(int index, String html) throws Exception {
+		MimeMessage result = new MimeMessage((Session) null);
+		result.setSubject("Your order " + index + " has been shipped", "UTF-8");
+		result.addRecipient(RecipientType.TO, new InternetAddress("user" + index + "@example.com"));
+		result.setContent(html, "text/html; charset=UTF-8");
+		result.saveChanges();
+		return result;
+	}
+
+	private static void report(String name, int count, long heap, long offHeap) {
+		System.out.println(name + ": heap " + (heap / count) + " bytes/message, off-heap " + (offHeap / count) + " bytes/message");
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.aerse.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DkimSignedMessageTest {
+
+	// RFC 6376 appendix A. Relaxed canonicalization doesn't change this body
+	private static final String BODY = "Hi.\r\n\r\nWe lost the game. Are you hungry yet?\r\n\r\nJoe.\r\n";
+	private static final String BODY_HASH = "2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=";
+
+	private static KeyPair keyPair;
+
+	@BeforeClass
+	public static void generateKey() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keyPair = generator.generateKeyPair();
+	}
+
+	@Test
+	public void testSignature() throws Exception {
+		String signed = sign(BODY);
+		Map<String, String> tags = getTags(getFields(signed).get(0));
+		assertEquals(BODY_HASH, tags.get("bh"));
+		assertEquals(String.valueOf(BODY.length()), tags.get("l"));
+		assertEquals("example.com", tags.get("d"));
+		assertEquals("brisbane", tags.get("s"));
+		assertTrue(verify(signed));
+	}
+
+	@Test
+	public void testRelaxedBody() throws Exception {
+		String signed = sign("Hi.  \r\n\r\nWe  lost \tthe game. Are you hungry yet? \r\n\r\nJoe.\r\n\r\n\r\n");
+		assertEquals(BODY_HASH, getTags(getFields(signed).get(0)).get("bh"));
+		assertTrue(verify(signed));
+	}
+
+	@Test
+	public void testBareLineEnds() throws Exception {
+		// transport sends bare CR and LF as CRLF
+		String signed = sign("Hi.\r\rWe lost the game. Are you hungry yet?\n\nJoe.\r");
+		assertEquals(BODY_HASH, getTags(getFields(signed).get(0)).get("bh"));
+		assertTrue(verify(signed));
+	}
+
+	private static String sign(String body) throws Exception {
+		DkimSignedMessage message = new DkimSignedMessage(Session.getInstance(new Properties()), "example.com", "brisbane", "joe@football.example.com", (RSAPrivateKey) keyPair.getPrivate());
+		message.setFrom(new InternetAddress("joe@football.example.com"));
+		message.setRecipient(RecipientType.TO, new InternetAddress("suzie@shopping.example.net"));
+		message.setSubject("Is dinner ready?");
+		message.setText(body, "US-ASCII");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		message.writeTo(baos);
+		return new String(baos.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Independent verification of header signature. Headers are canonicalized
+	 * with "simple" algorithm, i.e. taken as is.
+	 */
+	private static boolean verify(String signed) throws Exception {
+		List<String> fields = getFields(signed);
+		String dkim = fields.get(0);
+		assertTrue(dkim.startsWith("DKIM-Signature:"));
+		Map<String, String> tags = getTags(dkim);
+		StringBuilder data = new StringBuilder();
+		for (String name : tags.get("h").split(":")) {
+			String last = null;
+			for (String cur : fields.subList(1, fields.size())) {
+				if (cur.substring(0, cur.indexOf(':')).equalsIgnoreCase(name)) {
+					last = cur;
+				}
+			}
+			data.append(last).append("\r\n");
+		}
+		data.append(dkim.substring(0, dkim.indexOf("; b=") + "; b=".length()));
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initVerify(keyPair.getPublic());
+		signature.update(data.toString().getBytes(StandardCharsets.UTF_8));
+		return signature.verify(Base64.getDecoder().decode(tags.get("b")));
+	}
+
+	// header fields including folded lines
+	private static List<String> getFields(String signed) {
+		String headers = signed.substring(0, signed.indexOf("\r\n\r\n"));
+		List<String> result = new ArrayList<>();
+		for (String line : headers.split("\r\n")) {
+			if (line.startsWith(" ") || line.startsWith("\t")) {
+				int last = result.size() - 1;
+				result.set(last, result.get(last) + "\r\n" + line);
+			} else {
+				result.add(line);
+			}
+		}
+		return result;
+	}
+
+	private static Map<String, String> getTags(String dkim) {
+		Map<String, String> result = new HashMap<>();
+		for (String cur : dkim.substring(dkim.indexOf(':') + 1).split(";")) {
+			int index = cur.indexOf('=');
+			result.put(cur.substring(0, index).trim().toLowerCase(Locale.ENGLISH), cur.substring(index + 1).trim());
+		}
+		return result;
+	}
+}